@@ -0,0 +1,401 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Client side of the wire protocol, driven by one selector thread so that no
+ * caller thread waits while a request is on the network. Requests return a
+ * future that completes with the response (positioned at its opcode) or
+ * exceptionally on connect failure, timeout or a broken connection.
+ *
+ * Each peer gets one connection, and every request to it goes out on that
+ * connection at once, tagged with a request id; responses are matched by id and
+ * may arrive in any order, so a slow request does not hold up the ones behind
+ * it. Requests submitted together are written with one gathering write. Futures
+ * are completed on the transport thread, so callbacks attached to them must not
+ * block.
+ *
+ * The server side is each process's {@link CommunicateManager} listening on its
+ * own socket, and maintenance runs on a thread per node.
+ */
+public class AsyncTransport extends Thread implements Transport {
+
+    private static final long CONNECT_TIMEOUT_MS = 1000;
+    private static final long READ_TIMEOUT_MS = 3000;
+    // Must stay below CommunicateManager.IDLE_TIMEOUT so the server rarely closes a connection we are about to reuse
+    private static final long MAX_IDLE_MS = 30000;
+    private static final long TIMEOUT_CHECK_MS = 50;
+    private static final int READ_BUFFER_SIZE = 4096;
+    // most buffers written with one system call, two per request
+    private static final int MAX_GATHER = 64;
+
+    private final Selector selector;
+    private final Queue<Request> submitted = new ConcurrentLinkedQueue<>();
+    // only touched by the transport thread
+    private final Map<InetSocketAddress, Connection> connections = new HashMap<>();
+    private final List<Connection> toFlush = new ArrayList<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private int nextRequestId;
+    // every node of this process sends from the same host
+    private final RttEstimator rttEstimator = new RttEstimator();
+    private final FailureDetector failureDetector = new FailureDetector();
+
+    public AsyncTransport() {
+        super("async-transport");
+        setDaemon(true);
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open client selector", e);
+        }
+    }
+
+    /**
+     * Sends a request frame built by {@link WireProtocol} to the virtual node with
+     * id target at server. The frame's position and content are left untouched.
+     */
+    @Override
+    public CompletableFuture<ByteBuffer> request(InetSocketAddress server, long target, ByteBuffer frame) {
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        submitted.add(new Request(server, target, frame, response));
+        selector.wakeup();
+        return response;
+    }
+
+    @Override
+    public void listen(CommunicateManager server) {
+        server.openSocket();
+    }
+
+    @Override
+    public void close(CommunicateManager server) {
+        server.closeSocket();
+    }
+
+    @Override
+    public void runMaintenance(NodeMaintenance maintenance) {
+        maintenance.start();
+    }
+
+    @Override
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    @Override
+    public FailureDetector getFailureDetector() {
+        return failureDetector;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(TIMEOUT_CHECK_MS);
+            } catch (IOException e) {
+                System.err.println("Client selector failure: " + e.getMessage());
+                continue;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid()) {
+                    handle(key);
+                }
+            }
+            Request request;
+            while ((request = submitted.poll()) != null) {
+                send(request);
+            }
+            // everything queued above leaves in as few writes as possible
+            for (int i = 0; i < toFlush.size(); i++) {
+                Connection connection = toFlush.get(i);
+                if (connection.key.isValid() && connection.connected) {
+                    try {
+                        flush(connection);
+                    } catch (IOException e) {
+                        fail(connection, e);
+                    }
+                }
+            }
+            toFlush.clear();
+            expire(System.currentTimeMillis());
+        }
+    }
+
+    private void send(Request request) {
+        Connection connection = connections.get(request.server);
+        try {
+            if (connection == null) {
+                connection = open(request.server);
+                connections.put(request.server, connection);
+            } else {
+                Helper.getMetrics().increment(PerformanceMetrics.Counter.CONNECTIONS_REUSED);
+                request.onExisting = true;
+            }
+        } catch (IOException e) {
+            request.response.completeExceptionally(e);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int id = nextRequestId++;
+        request.sentAt = now;
+        request.deadline = now + READ_TIMEOUT_MS + (connection.connected ? 0 : CONNECT_TIMEOUT_MS);
+        connection.pending.put(id, request);
+        connection.writeQueue.add(WireProtocol.header(request.frame, request.target, id));
+        connection.writeQueue.add(request.frame.duplicate().position(request.frame.position() + WireProtocol.HEADER_SIZE));
+        connection.lastActive = now;
+        if (connection.writeQueue.size() == 2) {
+            toFlush.add(connection);
+        }
+    }
+
+    private Connection open(InetSocketAddress server) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = channel.connect(server);
+            SelectionKey key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+            Connection connection = new Connection(server, channel, key, connected);
+            key.attach(connection);
+            Helper.getMetrics().increment(PerformanceMetrics.Counter.CONNECTIONS_OPENED);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                if (connection.channel.finishConnect()) {
+                    connection.connected = true;
+                    key.interestOps(SelectionKey.OP_READ);
+                    flush(connection);
+                }
+                return;
+            }
+            if (key.isWritable()) {
+                flush(connection);
+            }
+            if (key.isReadable()) {
+                read(connection);
+            }
+        } catch (IOException e) {
+            fail(connection, e);
+        }
+    }
+
+    /**
+     * Writes as much of the queue as the socket takes, many requests per call, and
+     * asks for OP_WRITE if some is left.
+     */
+    private void flush(Connection connection) throws IOException {
+        Queue<ByteBuffer> queue = connection.writeQueue;
+        while (!queue.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : queue) {
+                if (count == MAX_GATHER) {
+                    break;
+                }
+                gather[count++] = buffer;
+            }
+            connection.channel.write(gather, 0, count);
+            for (int i = 0; i < count && !gather[i].hasRemaining(); i++) {
+                queue.poll();
+            }
+            boolean full = gather[count - 1].hasRemaining();
+            Arrays.fill(gather, 0, count, null);
+            if (full) {
+                // socket buffer is full, wait for the next OP_WRITE
+                connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        connection.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Reads what is available and completes every request whose response is now
+     * complete. A response to a request that already timed out is dropped.
+     */
+    private void read(Connection connection) throws IOException {
+        ByteBuffer buffer = connection.readBuffer;
+        if (!buffer.hasRemaining()) {
+            buffer = connection.growReadBuffer();
+        }
+        if (connection.channel.read(buffer) < 0) {
+            throw new EOFException("Connection to " + connection.peer + " closed by peer");
+        }
+        long now = System.currentTimeMillis();
+        connection.lastReceived = now;
+        connection.lastActive = now;
+        buffer.flip();
+        int frameSize;
+        while ((frameSize = WireProtocol.completeFrameSize(buffer)) > 0) {
+            int id = WireProtocol.requestId(buffer);
+            ByteBuffer message = WireProtocol.readMessage(buffer, frameSize);
+            Request request = connection.pending.remove(id);
+            if (request != null) {
+                request.response.complete(message);
+            }
+        }
+        buffer.compact();
+        if (frameSize < 0) {
+            throw new IOException("Malformed response from " + connection.peer);
+        }
+    }
+
+    /**
+     * Closes a broken connection. Its requests are sent again once, on a new
+     * connection, if the old one may simply have been dropped by the peer while
+     * idle: they were queued on an existing connection and nothing has been
+     * received on it since. Others fail with cause.
+     */
+    private void fail(Connection connection, IOException cause) {
+        connection.close();
+        connections.remove(connection.peer, connection);
+        List<Request> requests = new ArrayList<>(connection.pending.values());
+        connection.pending.clear();
+        for (Request request : requests) {
+            if (request.onExisting && !request.retried && connection.lastReceived < request.sentAt) {
+                request.retried = true;
+                request.onExisting = false;
+                Helper.getMetrics().increment(PerformanceMetrics.Counter.CONNECTION_RETRIES);
+                send(request);
+            } else {
+                request.response.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * Fails requests past their deadline. A request that timed out after others
+     * were answered on its connection fails alone; if nothing came back since it
+     * was sent, the connection is taken as dead and closed with everything on it.
+     * Connections idle for longer than MAX_IDLE_MS are closed.
+     */
+    private void expire(long now) {
+        List<Connection> dead = null;
+        for (Connection connection : connections.values()) {
+            if (connection.pending.isEmpty()) {
+                if (now - connection.lastActive > MAX_IDLE_MS) {
+                    dead = add(dead, connection);
+                }
+                continue;
+            }
+            Iterator<Request> requests = connection.pending.values().iterator();
+            while (requests.hasNext()) {
+                Request request = requests.next();
+                if (now <= request.deadline) {
+                    continue;
+                }
+                if (connection.lastReceived < request.sentAt) {
+                    dead = add(dead, connection);
+                    break;
+                }
+                requests.remove();
+                request.response.completeExceptionally(new SocketTimeoutException("Request to " + connection.peer + " timed out"));
+            }
+        }
+        if (dead != null) {
+            for (Connection connection : dead) {
+                if (connection.pending.isEmpty()) {
+                    connection.close();
+                    connections.remove(connection.peer, connection);
+                } else {
+                    // not worth a retry: the peer is not answering
+                    connection.lastReceived = Long.MAX_VALUE;
+                    fail(connection, new SocketTimeoutException("Request to " + connection.peer + " timed out"));
+                }
+            }
+        }
+    }
+
+    private static List<Connection> add(List<Connection> list, Connection connection) {
+        if (list == null) {
+            list = new ArrayList<>();
+        }
+        list.add(connection);
+        return list;
+    }
+
+    private static final class Request {
+
+        private final InetSocketAddress server;
+        private final long target;
+        // shared with other requests; only duplicates are written
+        private final ByteBuffer frame;
+        private final CompletableFuture<ByteBuffer> response;
+        private boolean onExisting;
+        private boolean retried;
+        private long sentAt;
+        private long deadline;
+
+        private Request(InetSocketAddress server, long target, ByteBuffer frame, CompletableFuture<ByteBuffer> response) {
+            this.server = server;
+            this.target = target;
+            this.frame = frame;
+            this.response = response;
+        }
+    }
+
+    private static final class Connection {
+
+        private final InetSocketAddress peer;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Map<Integer, Request> pending = new HashMap<>();
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private boolean connected;
+        private long lastReceived;
+        private long lastActive;
+
+        private Connection(InetSocketAddress peer, SocketChannel channel, SelectionKey key, boolean connected) {
+            this.peer = peer;
+            this.channel = channel;
+            this.key = key;
+            this.connected = connected;
+        }
+
+        private ByteBuffer growReadBuffer() {
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+            return readBuffer;
+        }
+
+        private void close() {
+            if (key.isValid()) {
+                Helper.getMetrics().increment(PerformanceMetrics.Counter.CONNECTIONS_CLOSED);
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -1,11 +1,14 @@
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Scanner;
 
 public class Chord {
 
     private static Node currentNode;
+    private static List<Node> virtualNodes;
     private static InetSocketAddress joiningPoint;
     private static Helper utility;
 
@@ -21,13 +24,18 @@ public class Chord {
             e.printStackTrace();
         }
 
-        // Initialize the current node
-        currentNode = new Node(Helper.createSocketAddress(ip + ":" + args[0]));
+        // Keep each node's keys on disk so a restarted node still has them
+        Helper.setDataDirectory(Paths.get("data"));
+
+        // Initialize the current node, optionally as several virtual nodes given by a last argument
+        int virtualNodeCount = args.length == 2 || args.length == 4 ? Integer.parseInt(args[args.length - 1]) : 1;
+        virtualNodes = Node.createVirtualNodes(Helper.createSocketAddress(ip + ":" + args[0]), virtualNodeCount);
+        currentNode = virtualNodes.get(0);
 
         // Determine whether to initiate a new ring or join an existing one
-        if (args.length == 1) {
+        if (args.length <= 2) {
             joiningPoint = currentNode.getAddress();
-        } else if (args.length == 3) {
+        } else if (args.length <= 4) {
             joiningPoint = Helper.createSocketAddress(args[1] + ":" + args[2]);
             if (joiningPoint == null) {
                 System.out.println("Failed to locate the joining address. Exiting.");
@@ -38,11 +46,14 @@ public class Chord {
             System.exit(0);
         }
 
-        // Attempt to join the DHT ring
-        if (!currentNode.join(joiningPoint)) {
+        // Attempt to join the DHT ring, through the peers known before a restart if there are any
+        if (!currentNode.rejoin(joiningPoint)) {
             System.out.println("Unable to join the DHT ring at the provided address. Exiting.");
             System.exit(0);
         }
+        for (Node virtualNode : virtualNodes.subList(1, virtualNodes.size())) {
+            virtualNode.rejoin(currentNode.getAddress());
+        }
 
         // Display joining information
         System.out.println("Joined the DHT ring.");
@@ -55,11 +66,16 @@ public class Chord {
             System.out.println("\nType 'info' to display node information or 'exit' to leave the DHT ring:");
             String command = input.next();
             if ("exit".equals(command)) {
-                currentNode.stopAllThreads();
+                for (Node virtualNode : virtualNodes) {
+                    virtualNode.stopAllThreads();
+                }
                 System.out.println("Node exiting the DHT ring...");
                 System.exit(0);
             } else if ("info".equals(command)) {
-                currentNode.printDataStructure();
+                for (Node virtualNode : virtualNodes) {
+                    virtualNode.printDataStructure();
+                }
+                System.out.println(Helper.getMetrics());
             }
         }
     }
@@ -1,14 +1,25 @@
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
 public class ChordPerformanceTest {
 
+    private static final long STABILIZATION_MS = 15000;
+
     public static void main(String[] args) {
         int ChordSize=50;
         List<Node> nodes = initializeChordNetwork(ChordSize);
-        performLookupOperations(nodes,ChordSize);
+        // same workload in both routing modes, for a side by side comparison
+        for (LookupEngine.Mode mode : LookupEngine.Mode.values()) {
+            System.out.println("\n--- " + mode + " lookups ---");
+            for (Node node : nodes) {
+                node.setLookupMode(mode);
+            }
+            performLookupOperations(nodes,ChordSize);
+        }
+        performKeyValueOperations(nodes, ChordSize);
         simulateNodeLeaves(nodes,5);
     }
 
@@ -16,6 +27,7 @@ public class ChordPerformanceTest {
         Random random = new Random();
         long totalLatency = 0;
         int successCount = 0;
+        int totalHops = 0;
 
     
         for (int i = 0; i < size; i++) { 
@@ -23,7 +35,7 @@ public class ChordPerformanceTest {
             Node randomNode = nodes.get(random.nextInt(nodes.size()));
     
             long startTime = System.nanoTime();
-            InetSocketAddress result = randomNode.searchSuccessor(keyHash);
+            LookupResult result = randomNode.lookup(keyHash);
             long endTime = System.nanoTime();
     
             long operationLatency = endTime - startTime;
@@ -31,15 +43,42 @@ public class ChordPerformanceTest {
     
             if (result != null) {
                 successCount++;
-                System.out.println("Key hash: " + keyHash + ", Found at Node: " + result + ", Latency: " + operationLatency + " ns");
+                totalHops += result.getHops();
+                System.out.println("Key hash: " + keyHash + ", Found at Node: " + result.getOwner() + ", Hops: " + result.getHops() + ", Latency: " + operationLatency + " ns");
             } else {
                 System.out.println("Key hash: " + keyHash + " not found. Latency: " + operationLatency + " ns");
             }
         }
         double averageLatency = totalLatency / ((float)size);
         System.out.println("Average Latency: " + averageLatency + " ns");
+        System.out.println("Average Hops: " + totalHops / ((float)size));
     }
     
+    private static void performKeyValueOperations(List<Node> nodes, int size) {
+        Random random = new Random();
+        int stored = 0;
+        int readBack = 0;
+        long startTime = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            byte[] key = ("key" + i).getBytes(StandardCharsets.UTF_8);
+            byte[] value = ("value" + i).getBytes(StandardCharsets.UTF_8);
+            if (nodes.get(random.nextInt(nodes.size())).put(key, value)) {
+                stored++;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            byte[] key = ("key" + i).getBytes(StandardCharsets.UTF_8);
+            byte[] value = nodes.get(random.nextInt(nodes.size())).get(key);
+            if (value != null && new String(value, StandardCharsets.UTF_8).equals("value" + i)) {
+                readBack++;
+            }
+        }
+        long elapsed = System.nanoTime() - startTime;
+        System.out.println("\n--- key-value operations ---");
+        System.out.println("Stored: " + stored + "/" + size + ", read back: " + readBack + "/" + size);
+        System.out.println("Average Latency: " + elapsed / (2.0 * size) + " ns");
+    }
+
     private static void simulateNodeLeaves(List<Node> nodes, int operationsCount) {
         Random random = new Random();
     
@@ -64,16 +103,15 @@ public class ChordPerformanceTest {
     
 private static List<Node> initializeChordNetwork(int nodeCount) {
     List<Node> nodes = new ArrayList<>();
-    InetSocketAddress firstAddress = new InetSocketAddress("192.168.56.1", 8000);
+    // the first node creates the ring by joining through itself, every other node joins through it
+    InetSocketAddress firstAddress = new InetSocketAddress("127.0.0.1", 8000);
     Node firstNode = new Node(firstAddress);
-    firstNode.join(null); 
+    firstNode.join(firstAddress); 
     nodes.add(firstNode);
     for (int i = 1; i < nodeCount; i++) {
-        InetSocketAddress joiningPoint;
-        InetSocketAddress address = new InetSocketAddress("192.168.56.1", 8000 + i);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 8000 + i);
         Node newNode = new Node(address);
-        joiningPoint = Helper.createSocketAddress("192.168.56.1" + ":" +(8000 + i));
-        newNode.join(joiningPoint); 
+        newNode.join(firstAddress); 
         nodes.add(newNode);
 
         try {
@@ -83,6 +121,12 @@ private static List<Node> initializeChordNetwork(int nodeCount) {
         }
     }
 
+    // let stabilization fix the fingers, so lookups take their real number of hops
+    try {
+        Thread.sleep(STABILIZATION_MS);
+    } catch (InterruptedException e) {
+        e.printStackTrace();
+    }
     return nodes;
 }
 
@@ -0,0 +1,239 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs a large ring on a {@link SimulatedTransport} inside this JVM and reports,
+ * in virtual time, how long stabilization takes to converge and how many hops and
+ * milliseconds lookups take once it has.
+ *
+ * Usage: java ChordSimulation [nodes] [one-way latency ms] [loss probability] [ms between joins]
+ *        [racks] [one-way latency between racks ms]
+ *
+ * Joins closer together than a lookup takes leave more wrong successors for
+ * stabilization to repair, so the last argument trades setup time for how long
+ * convergence takes. With more than one rack the first latency applies within a
+ * rack, which shows how much proximity routing saves.
+ *
+ * Finally it stores keys, lets a tenth of the ring join and a twentieth crash, and
+ * checks that once maintenance has caught up every key is held by exactly as many
+ * nodes as the replication factor asks for.
+ *
+ * Exits with status 1 if the ring has not converged after ten minutes of virtual
+ * time, so a loss probability above 0 checks that stabilization survives lost
+ * packets, or if the ring ends up with the wrong number of copies.
+ */
+public class ChordSimulation {
+
+    private static final long CHECK_INTERVAL_MS = 5000;
+    private static final long MAX_CONVERGENCE_MS = 600000;
+    private static final int LOOKUPS = 1000;
+    private static final long STEADY_STATE_MS = 60000;
+    private static final int KEYS = 1000;
+    private static final long CHURN_SETTLE_MS = 120000;
+
+    public static void main(String[] args) throws UnknownHostException {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 20;
+        double loss = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        long joinInterval = args.length > 3 ? Long.parseLong(args[3]) : 100;
+        int racks = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        long rackLatency = args.length > 5 ? Long.parseLong(args[5]) : latency * 5;
+
+        SimulatedTransport network = new SimulatedTransport(1);
+        network.setLatency(latency / 2, latency * 3 / 2);
+        network.setLoss(loss);
+        network.setRacks(racks, rackLatency / 2, rackLatency * 3 / 2);
+        Helper.setTransport(network);
+        Random random = new Random(1);
+
+        // Every node joins through one that is already on the ring
+        List<Node> nodes = new ArrayList<>(nodeCount);
+        List<Node> members = new ArrayList<>(nodeCount);
+        TreeMap<Long, NodeRef> ring = new TreeMap<>();
+        Node first = new Node(simulatedAddress(0));
+        network.await(network.runAs(first.getAddress(), () -> first.joinAsync(first.getAddress())));
+        nodes.add(first);
+        members.add(first);
+        ring.put(first.getId(), first.getNodeRef());
+        for (int i = 1; i < nodeCount; i++) {
+            Node node = new Node(simulatedAddress(i));
+            join(network, node, members, random);
+            nodes.add(node);
+            ring.put(node.getId(), node.getNodeRef());
+            network.runFor(joinInterval);
+        }
+        while (members.size() < nodeCount) {
+            network.runFor(joinInterval);
+        }
+        long joined = network.now();
+        System.out.println("\n--- " + nodeCount + " nodes joined after " + joined + " ms, " + network.getMessageCount() + " messages ---");
+
+        // Stabilization has converged once every successor and finger is right; a finger
+        // may be any node from the owner of its start up to the next finger's start
+        boolean converged = false;
+        while (!converged && network.now() - joined < MAX_CONVERGENCE_MS) {
+            network.runFor(CHECK_INTERVAL_MS);
+            int successors = 0;
+            int fingers = 0;
+            for (Node node : nodes) {
+                if (node.getNodeRef().equals(node.getSuccessor()) ? nodeCount == 1 : owner(ring, node.getId() + 1).equals(node.getSuccessor())) {
+                    successors++;
+                }
+                for (int i = 1; i <= FingerTable.SIZE; i++) {
+                    if (fingerCorrect(ring, node, i)) {
+                        fingers++;
+                    }
+                }
+            }
+            System.out.println(String.format("t=%d ms: successors %.2f%%, fingers %.2f%%", network.now() - joined,
+                    successors * 100.0 / nodeCount, fingers * 100.0 / (nodeCount * FingerTable.SIZE)));
+            converged = successors == nodeCount && fingers == nodeCount * FingerTable.SIZE;
+        }
+        if (!converged) {
+            // lost packets must only slow stabilization down, never keep the ring from forming
+            System.out.println("Did not converge within " + MAX_CONVERGENCE_MS + " ms at loss " + loss);
+        }
+
+        // Maintenance alone on the converged ring
+        LatencyHistogram.Snapshot convergence = Helper.getMetrics().snapshot().getConvergence();
+        System.out.println(String.format("Per-node convergence: p50 %d ms, p99 %d ms, max %d ms",
+                convergence.getPercentile(0.5) / 1000000, convergence.getPercentile(0.99) / 1000000, convergence.getMax() / 1000000));
+        Helper.getMetrics().reset();
+        long messages = network.getMessageCount();
+        network.runFor(STEADY_STATE_MS);
+        System.out.println(String.format("Steady state: %.2f messages/s per node",
+                (network.getMessageCount() - messages) * 1000.0 / STEADY_STATE_MS / nodeCount));
+
+        // Lookups from random nodes for random ids, all in flight together
+        messages = network.getMessageCount();
+        long[] ids = new long[LOOKUPS];
+        List<CompletableFuture<LookupResult>> lookups = new ArrayList<>(LOOKUPS);
+        for (int i = 0; i < LOOKUPS; i++) {
+            ids[i] = random.nextLong() & Helper.RING_MASK;
+            Node from = nodes.get(random.nextInt(nodeCount));
+            long id = ids[i];
+            lookups.add(network.runAs(from.getAddress(), () -> from.lookupAsync(id)));
+        }
+        int correct = 0;
+        int hops = 0;
+        long totalLatency = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            LookupResult result = network.await(lookups.get(i));
+            if (result.getOwner().equals(owner(ring, ids[i]))) {
+                correct++;
+            }
+            hops += result.getHops();
+            totalLatency += result.getTotalLatency();
+        }
+        System.out.println("\n--- " + LOOKUPS + " lookups ---");
+        System.out.println("Correct: " + correct + "/" + LOOKUPS);
+        System.out.println("Average Hops: " + hops / (double) LOOKUPS);
+        System.out.println("Average Latency: " + totalLatency / (double) LOOKUPS / 1000000 + " ms");
+        System.out.println("Messages: " + (network.getMessageCount() - messages) + " during lookups, " + network.getLostCount() + " lost overall");
+
+        boolean copiesRight = checkCopiesAfterChurn(network, nodes, members, ring, random);
+        if (!converged || !copiesRight) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Stores KEYS keys, joins a tenth and crashes a twentieth of the ring, and returns
+     * whether the live nodes then hold factor copies of every key between them. Crashed
+     * nodes are spread out so no key loses all its copies at once. Packets are no
+     * longer lost from here on: with loss the ring keeps flapping, and copies are
+     * only where they belong while it holds still.
+     */
+    private static boolean checkCopiesAfterChurn(SimulatedTransport network, List<Node> nodes, List<Node> members,
+            TreeMap<Long, NodeRef> ring, Random random) throws UnknownHostException {
+        network.setLoss(0);
+        List<CompletableFuture<Boolean>> puts = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            Node from = nodes.get(random.nextInt(nodes.size()));
+            byte[] key = ("key-" + i).getBytes(StandardCharsets.UTF_8);
+            puts.add(network.runAs(from.getAddress(), () -> from.putAsync(key, key)));
+        }
+        int stored = 0;
+        for (CompletableFuture<Boolean> put : puts) {
+            if (network.await(put)) {
+                stored++;
+            }
+        }
+
+        int factor = nodes.get(0).getReplicator().getFactor();
+        int joining = Math.max(1, nodes.size() / 10);
+        int crashing = nodes.size() / 20;
+        int stride = Math.max(factor + 1, nodes.size() / Math.max(1, crashing));
+        List<Node> byId = new ArrayList<>(nodes);
+        byId.sort((a, b) -> Long.compare(a.getId(), b.getId()));
+        List<Node> live = new ArrayList<>(nodes);
+        for (int i = 0; i < crashing && i * stride < byId.size(); i++) {
+            Node victim = byId.get(i * stride);
+            network.crash(victim.getAddress());
+            live.remove(victim);
+            members.remove(victim);
+            ring.remove(victim.getId());
+        }
+        int target = members.size() + joining;
+        for (int i = 0; i < joining; i++) {
+            Node node = new Node(simulatedAddress(nodes.size() + i));
+            join(network, node, members, random);
+            live.add(node);
+            ring.put(node.getId(), node.getNodeRef());
+        }
+        while (members.size() < target) {
+            network.runFor(CHECK_INTERVAL_MS);
+        }
+        network.runFor(CHURN_SETTLE_MS);
+
+        long copies = 0;
+        for (Node node : live) {
+            copies += node.getDataStore().size();
+        }
+        long expected = (long) stored * Math.min(factor, live.size());
+        System.out.println("\n--- " + KEYS + " keys, " + joining + " joins, " + crashing + " crashes ---");
+        System.out.println("Stored: " + stored + "/" + KEYS);
+        System.out.println("Copies: " + copies + ", expected " + expected);
+        return stored == KEYS && copies == expected;
+    }
+
+    /**
+     * Joins node through a random member, trying another one until it succeeds.
+     */
+    private static void join(SimulatedTransport network, Node node, List<Node> members, Random random) {
+        Node contact = members.get(random.nextInt(members.size()));
+        network.runAs(node.getAddress(), () -> node.joinAsync(contact.getAddress())).thenAccept(joined -> {
+            if (joined) {
+                members.add(node);
+            } else {
+                join(network, node, members, random);
+            }
+        });
+    }
+
+    private static boolean fingerCorrect(TreeMap<Long, NodeRef> ring, Node node, int i) {
+        NodeRef finger = node.getFinger(i);
+        NodeRef owner = owner(ring, Helper.calculateNodePosition(node.getId(), i));
+        if (finger == null || owner.equals(finger)) {
+            return owner.equals(finger);
+        }
+        long relative = Helper.computeRelativeId(finger.getId(), node.getId());
+        return ring.containsKey(finger.getId()) && relative > Helper.computeRelativeId(owner.getId(), node.getId()) && relative < 1L << i;
+    }
+
+    private static NodeRef owner(TreeMap<Long, NodeRef> ring, long id) {
+        Long key = ring.ceilingKey(id & Helper.RING_MASK);
+        return ring.get(key != null ? key : ring.firstKey());
+    }
+
+    private static InetSocketAddress simulatedAddress(int i) throws UnknownHostException {
+        return new InetSocketAddress(InetAddress.getByAddress(new byte[] {10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i}), 8000);
+    }
+}
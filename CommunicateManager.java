@@ -1,116 +1,576 @@
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * Single-threaded selector loop that accepts peer connections and reads requests
+ * without blocking. Complete requests are handed to a worker pool and the
+ * responses are queued back to the selector thread for writing. Handlers that
+ * depend on other nodes (FINDSUCC) return a future instead of waiting, so a
+ * worker is never held for the duration of a lookup.
+ *
+ * A client may pipeline many requests on one connection. Each is handled as soon
+ * as it has been read, and its response goes out tagged with its request id as
+ * soon as it is ready, regardless of order. Responses queued while the socket
+ * was busy leave together in one gathering write. Text sessions have no request
+ * ids, so they are answered one line at a time, in order.
+ *
+ * One listener serves all the virtual nodes of a process. Each request is handed
+ * to the node whose id is the frame's target; requests without a target (text
+ * sessions) go to the first registered node, and ones for an unknown target are
+ * answered UNKNOWN.
+ *
+ * The socket is only opened once the transport asks for it; a simulated
+ * transport calls {@link #handle} directly instead.
+ */
 public class CommunicateManager extends Thread {
 
-    private final Node local;
+    // Idle persistent connections are closed after this long without a request
+    private static final long IDLE_TIMEOUT = 60000;
+    private static final int READ_BUFFER_SIZE = 4096;
+    // longest request line a text session may send before it is disconnected
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_STEP_CANDIDATES = 16;
+    // most responses written with one system call
+    private static final int MAX_GATHER = 64;
+
+    private final InetSocketAddress address;
+    private final Map<Long, Node> nodes = new ConcurrentHashMap<>();
+    private volatile Node defaultNode;
     private ServerSocketChannel serverSocketChannel;
+    private Selector selector;
     private final ExecutorService threadPool;
+    // Connections with responses waiting to be flushed by the selector thread
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
     private volatile boolean alive;
+    private boolean listening;
 
-    public CommunicateManager(Node local, int threadPoolSize) {
-        this.local = local;
+    public CommunicateManager(InetSocketAddress address, int threadPoolSize) {
+        this.address = address;
         this.alive = true;
         this.threadPool = Executors.newFixedThreadPool(threadPoolSize);
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Makes node reachable through this listener under its id.
+     */
+    public synchronized void register(Node node) {
+        nodes.put(node.getId(), node);
+        if (defaultNode == null) {
+            defaultNode = node;
+        }
+    }
+
+    /**
+     * Removes node and returns the number of nodes still served.
+     */
+    public synchronized int unregister(Node node) {
+        nodes.remove(node.getId());
+        if (node == defaultNode) {
+            defaultNode = nodes.isEmpty() ? null : nodes.values().iterator().next();
+        }
+        return nodes.size();
+    }
+
+    public boolean serves(long id) {
+        return nodes.containsKey(id);
+    }
+
+    /**
+     * The virtual nodes served by this listener.
+     */
+    public Collection<Node> getNodes() {
+        return nodes.values();
+    }
+
+    /**
+     * Starts the listener unless another virtual node already did.
+     */
+    public synchronized void startListening() {
+        if (!listening) {
+            listening = true;
+            Helper.getTransport().listen(this);
+        }
+    }
+
+    /**
+     * Binds the server socket and starts the selector loop on it.
+     */
+    void openSocket() {
         initializeServerSocket();
+        start();
+    }
+
+    void closeSocket() {
+        if (serverSocketChannel == null) {
+            return;
+        }
+        try {
+            serverSocketChannel.close();
+        } catch (IOException e) {
+        }
+        selector.wakeup();
     }
 
     private void initializeServerSocket() {
-        InetSocketAddress localAddress = local.getAddress();
         try {
+            selector = Selector.open();
             serverSocketChannel = ServerSocketChannel.open();
-            serverSocketChannel.bind(localAddress);
+            serverSocketChannel.bind(address);
             serverSocketChannel.configureBlocking(false);
+            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
-            throw new RuntimeException("Error opening server socket at " + localAddress, e);
+            throw new RuntimeException("Error opening server socket at " + address, e);
         }
     }
 
     @Override
     public void run() {
-        while (alive) {
-            try {
-                SocketChannel talkSocketChannel = serverSocketChannel.accept();
-                if (talkSocketChannel != null) {
-                    Socket talkSocket = talkSocketChannel.socket();
-                    threadPool.execute(() -> {
-                        try {
-                            handleSocketCommunication(talkSocket);
-                        } catch (IOException e) {
-                            System.err.println("Communication error on server port " + local.getAddress().getPort() + " and client port " + talkSocket.getPort());
+        long lastIdleCheck = System.currentTimeMillis();
+        try {
+            while (alive) {
+                selector.select(IDLE_TIMEOUT / 4);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
                         }
-                    });
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        closeConnection(key);
+                    }
+                }
+                registerPendingWrites();
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= IDLE_TIMEOUT / 4) {
+                    closeIdleConnections(now);
+                    lastIdleCheck = now;
                 }
-            } catch (IOException e) {
-                if (!alive) {
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (alive) {
+                System.err.println("Selector failure on server port " + address.getPort() + ": " + e.getMessage());
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverSocketChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+            Helper.getMetrics().increment(PerformanceMetrics.Counter.SERVER_CONNECTIONS_ACCEPTED);
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer buffer = connection.readBuffer;
+        if (!buffer.hasRemaining()) {
+            buffer = connection.growReadBuffer();
+        }
+        int n = connection.channel.read(buffer);
+        if (n < 0) {
+            closeConnection(key);
+            return;
+        }
+        connection.lastActive = System.currentTimeMillis();
+
+        buffer.flip();
+        if (connection.textMode == null) {
+            connection.textMode = buffer.get(buffer.position()) != WireProtocol.VERSION;
+        }
+        boolean valid = connection.textMode ? readTextRequests(connection, buffer) : readFrames(connection, buffer);
+        if (!valid) {
+            closeConnection(key);
+            return;
+        }
+        buffer.compact();
+    }
+
+    /**
+     * Dispatches every complete frame and leaves any partial one in the buffer for
+     * the next read. Returns false if the peer sent something that is not a frame.
+     */
+    private boolean readFrames(Connection connection, ByteBuffer buffer) {
+        int frameSize;
+        while ((frameSize = WireProtocol.completeFrameSize(buffer)) > 0) {
+            long target = WireProtocol.target(buffer);
+            int requestId = WireProtocol.requestId(buffer);
+            ByteBuffer message = WireProtocol.readMessage(buffer, frameSize);
+            dispatch(connection, target, requestId, message);
+        }
+        return frameSize == 0;
+    }
+
+    /**
+     * Dispatches every complete line and leaves a partial one in the buffer for the
+     * next read. Returns false if a line runs past MAX_LINE_LENGTH.
+     */
+    private boolean readTextRequests(Connection connection, ByteBuffer buffer) {
+        int start = buffer.position();
+        for (int i = start; i < buffer.limit(); i++) {
+            if (i - start > MAX_LINE_LENGTH) {
+                return false;
+            }
+            if (buffer.get(i) == '\n') {
+                String line = new String(buffer.array(), start, i - start, StandardCharsets.UTF_8);
+                ByteBuffer frame = WireProtocol.parseText(line);
+                ByteBuffer message = frame != null ? WireProtocol.readMessage(frame, frame.remaining()) : null;
+                dispatchText(connection, message);
+                start = i + 1;
+            }
+        }
+        buffer.position(start);
+        return true;
+    }
+
+    private void dispatch(Connection connection, long target, int requestId, ByteBuffer message) {
+        try {
+            threadPool.execute(() -> handle(target, message)
+                    // Every request gets exactly one response, or the client waits for it until it times out
+                    .whenComplete((frame, error) -> respond(connection, requestId, frame != null ? frame : WireProtocol.encode(WireProtocol.UNKNOWN), false)));
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /**
+     * Text responses carry no request id, so a text session is answered in request
+     * order: each line only goes to a worker once the one before it has been answered.
+     */
+    private void dispatchText(Connection connection, ByteBuffer message) {
+        CompletableFuture<Void> answered = new CompletableFuture<>();
+        CompletableFuture<Void> previous = connection.lastTextAnswer;
+        connection.lastTextAnswer = answered;
+        previous.thenRun(() -> {
+            try {
+                threadPool.execute(() -> handle(0, message).whenComplete((frame, error) -> {
+                    respond(connection, 0, frame != null ? frame : WireProtocol.encode(WireProtocol.UNKNOWN), true);
+                    answered.complete(null);
+                }));
+            } catch (RejectedExecutionException e) {
+                // shutting down
+            }
+        });
+    }
+
+    /**
+     * Hands a request message, positioned at its opcode, to the node with id target
+     * and returns its response frame. A handler that throws is answered UNKNOWN. The
+     * future may complete with null.
+     */
+    public CompletableFuture<ByteBuffer> handle(long target, ByteBuffer message) {
+        Node local = target != 0 ? nodes.get(target) : defaultNode;
+        if (message == null || local == null) {
+            return unknown();
+        }
+        byte opcode = WireProtocol.opcode(message);
+        long start = Helper.nanoTime();
+        CompletableFuture<ByteBuffer> response;
+        try {
+            response = processRequest(local, message);
+        } catch (RuntimeException e) {
+            // whatever a malformed request breaks, it still gets its one response
+            System.err.println("Request " + opcode + " failed on " + address + ": " + e);
+            response = unknown();
+        }
+        if (response.isDone()) {
+            Helper.getMetrics().recordServerRequest(opcode, Helper.nanoTime() - start);
+        } else {
+            response.whenComplete((frame, error) -> Helper.getMetrics().recordServerRequest(opcode, Helper.nanoTime() - start));
+        }
+        return response;
+    }
+
+    private void respond(Connection connection, int requestId, ByteBuffer response, boolean text) {
+        if (text) {
+            String line = WireProtocol.toText(WireProtocol.readMessage(response, response.remaining())) + "\n";
+            response = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        } else {
+            WireProtocol.setRequestId(response, requestId);
+        }
+        connection.writeQueue.add(response);
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+
+    private void registerPendingWrites() {
+        Connection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            if (connection.key.isValid()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer[] gather = connection.gather;
+        while (!connection.writeQueue.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer response : connection.writeQueue) {
+                if (count == MAX_GATHER) {
                     break;
                 }
+                gather[count++] = response;
+            }
+            connection.channel.write(gather, 0, count);
+            for (int i = 0; i < count && !gather[i].hasRemaining(); i++) {
+                connection.writeQueue.poll();
             }
+            boolean full = gather[count - 1].hasRemaining();
+            Arrays.fill(gather, 0, count, null);
+            if (full) {
+                // socket buffer is full, wait for the next OP_WRITE
+                return;
+            }
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        // a worker may have queued a response after the final peek
+        if (!connection.writeQueue.isEmpty()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
         }
     }
 
-    private void handleSocketCommunication(Socket socket) throws IOException {
-        try (InputStream input = socket.getInputStream(); OutputStream output = socket.getOutputStream()) {
-            String request = Helper.inputStreamToString(input);
-            String response = processRequest(request);
-            if (response != null) {
-                output.write(response.getBytes());
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection && now - ((Connection) attachment).lastActive > IDLE_TIMEOUT) {
+                closeConnection(key);
             }
         }
     }
 
-    private String processRequest(String request) {
-        if (request == null) {
-            return null;
-        }
-    
-        String[] parts = request.split("_");
-        String command = parts[0];
-        InetSocketAddress result;
-    
-        switch (command) {
-            case "CLOSEST":
-                long idClosest = Long.parseLong(parts[1]);
-                result = local.closestPrecedingFinger(idClosest);
-                return formatResponse("MYCLOSEST", result);
-    
-            case "YOURSUCC":
-                result = local.getSuccessor();
-                return result != null ? formatResponse("MYSUCC", result) : "NOTHING";
-    
-            case "FINDPRE":
-                result = local.getPredecessor();
-                return result != null ? formatResponse("PRERES", result) : "NOTHING";
-    
-            case "FINDSUCC":
-                long idFindSucc = Long.parseLong(parts[1]);
-                result = local.searchSuccessor(idFindSucc);
-                return formatResponse("FOUNDSUCC", result);
-    
-            case "PREFOUND":
-                InetSocketAddress newPre = Helper.createSocketAddress(parts[1]);
-                local.processNodeNotification(newPre, "NOTIFIED");
-                return "NOTIFIED";
-    
-            case "KEEP":
-                return "ALIVE";
-    
-            default:
-                return null;
-        }
-    }
-
-    private String formatResponse(String prefix, InetSocketAddress address) {
-        String ip = address.getAddress().toString();
-        int port = address.getPort();
-        return prefix + "_" + ip + ":" + port;
+    private void closeConnection(SelectionKey key) {
+        if (key.isValid() && key.attachment() instanceof Connection) {
+            Helper.getMetrics().increment(PerformanceMetrics.Counter.SERVER_CONNECTIONS_CLOSED);
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                closeConnection(key);
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+        }
+    }
+
+    private CompletableFuture<ByteBuffer> processRequest(Node local, ByteBuffer message) {
+        NodeRef result;
+        try {
+            switch (message.get()) {
+                case WireProtocol.CLOSEST:
+                    result = local.closestPrecedingFinger(WireProtocol.getId(message));
+                    return CompletableFuture.completedFuture(WireProtocol.encode(WireProtocol.NODE, result));
+
+                case WireProtocol.YOURSUCC:
+                    result = local.getSuccessor();
+                    return CompletableFuture.completedFuture(nodeOrNothing(result));
+
+                case WireProtocol.FINDPRE:
+                    result = local.getPredecessor();
+                    return CompletableFuture.completedFuture(nodeOrNothing(result));
+
+                case WireProtocol.SUCCESSORS:
+                    NodeRef[] successors = local.getSuccessorList();
+                    return CompletableFuture.completedFuture(WireProtocol.encode(WireProtocol.NODES, successors, successors.length));
+
+                case WireProtocol.FINGERS:
+                    return CompletableFuture.completedFuture(tableResponse(local));
+
+                case WireProtocol.FINDSUCC:
+                    return local.lookupAsync(WireProtocol.getId(message)).thenApply(found -> WireProtocol.encode(WireProtocol.NODE, found.getOwner()));
+
+                case WireProtocol.STEP:
+                    return CompletableFuture.completedFuture(stepResponse(local, WireProtocol.getId(message), message.get()));
+
+                case WireProtocol.STEPS:
+                    return CompletableFuture.completedFuture(stepsResponse(local, message));
+
+                case WireProtocol.ROUTE:
+                    long requestId = message.getLong();
+                    long routeId = WireProtocol.getId(message);
+                    NodeRef origin = WireProtocol.getNode(message);
+                    int hops = message.get() & 0xFF;
+                    // forwarding happens in the background, the previous hop only waits for the ack
+                    local.routeLookup(requestId, routeId, origin, hops);
+                    return CompletableFuture.completedFuture(WireProtocol.encode(WireProtocol.ACK));
+
+                case WireProtocol.ROUTED:
+                    long routedId = message.getLong();
+                    NodeRef owner = WireProtocol.getNode(message);
+                    int routedHops = message.get() & 0xFF;
+                    NodeRef from = message.hasRemaining() ? WireProtocol.getNode(message) : null;
+                    local.completeRoutedLookup(routedId, owner, routedHops, from);
+                    return CompletableFuture.completedFuture(WireProtocol.encode(WireProtocol.ACK));
+
+                case WireProtocol.PUT:
+                    byte[] putKey = WireProtocol.getBytes(message);
+                    byte[] putValue = WireProtocol.getBytes(message);
+                    if (!local.owns(Helper.hashBytes(putKey))) {
+                        return notOwner();
+                    }
+                    return local.storeAsOwner(putKey, putValue, consistency(local, message)).thenApply(CommunicateManager::ackOrNothing);
+
+                case WireProtocol.GET:
+                    byte[] value = local.getDataStore().get(WireProtocol.getBytes(message));
+                    return CompletableFuture.completedFuture(value != null ? WireProtocol.encode(WireProtocol.VALUE, value) : WireProtocol.encode(WireProtocol.NOTHING));
+
+                case WireProtocol.DELETE:
+                    byte[] deleteKey = WireProtocol.getBytes(message);
+                    if (!local.owns(Helper.hashBytes(deleteKey))) {
+                        return notOwner();
+                    }
+                    return local.storeAsOwner(deleteKey, null, consistency(local, message)).thenApply(CommunicateManager::ackOrNothing);
+
+                case WireProtocol.DROP:
+                    local.getDataStore().delete(WireProtocol.getBytes(message));
+                    return CompletableFuture.completedFuture(WireProtocol.encode(WireProtocol.ACK));
+
+                case WireProtocol.TRANSFER:
+                    int count = message.getInt();
+                    for (int i = 0; i < count; i++) {
+                        byte[] key = WireProtocol.getBytes(message);
+                        local.getDataStore().put(key, WireProtocol.getBytes(message));
+                    }
+                    return CompletableFuture.completedFuture(WireProtocol.encode(WireProtocol.ACK));
+
+                case WireProtocol.PREFOUND:
+                    NodeRef newPre = WireProtocol.getNode(message);
+                    local.processNodeNotification(newPre, "NOTIFIED");
+                    return CompletableFuture.completedFuture(WireProtocol.encode(WireProtocol.NOTIFIED));
+
+                case WireProtocol.KEEP:
+                    return CompletableFuture.completedFuture(WireProtocol.encode(WireProtocol.ALIVE));
+
+                default:
+                    return unknown();
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return unknown();
+        }
+    }
+
+    private static Replicator.Consistency consistency(Node local, ByteBuffer message) {
+        if (!message.hasRemaining()) {
+            return local.getReplicator().getConsistency();
+        }
+        int level = message.get();
+        if (level < 0 || level >= Replicator.Consistency.values().length) {
+            throw new IllegalArgumentException("Unknown consistency level " + level);
+        }
+        return Replicator.Consistency.values()[level];
+    }
+
+    private static ByteBuffer ackOrNothing(boolean done) {
+        return WireProtocol.encode(done ? WireProtocol.ACK : WireProtocol.NOTHING);
+    }
+
+    private static CompletableFuture<ByteBuffer> notOwner() {
+        return CompletableFuture.completedFuture(WireProtocol.encode(WireProtocol.NOT_OWNER));
+    }
+
+    private static CompletableFuture<ByteBuffer> unknown() {
+        return CompletableFuture.completedFuture(WireProtocol.encode(WireProtocol.UNKNOWN));
+    }
+
+    /**
+     * Answers one hop of an iterative lookup with this node's successor followed by
+     * up to count fingers preceding id.
+     */
+    private static ByteBuffer stepResponse(Node local, long id, int count) {
+        NodeRef successor = local.getSuccessor();
+        NodeRef[] fingers = local.closestPrecedingFingers(id, Math.min(Math.max(count, 0), MAX_STEP_CANDIDATES));
+        NodeRef[] nodes = new NodeRef[fingers.length + 1];
+        nodes[0] = successor != null ? successor : local.getNodeRef();
+        System.arraycopy(fingers, 0, nodes, 1, fingers.length);
+        return WireProtocol.encode(WireProtocol.NODES, nodes, nodes.length);
+    }
+
+    /**
+     * Answers a batch of lookup steps with this node's successor followed by the
+     * closest preceding finger for each id.
+     */
+    private static ByteBuffer stepsResponse(Node local, ByteBuffer message) {
+        int count = message.getShort() & 0xFFFF;
+        if (count > WireProtocol.MAX_STEPS_IDS) {
+            throw new IllegalArgumentException("Too many ids in one STEPS request: " + count);
+        }
+        NodeRef successor = local.getSuccessor();
+        NodeRef[] nodes = new NodeRef[count + 1];
+        nodes[0] = successor != null ? successor : local.getNodeRef();
+        for (int i = 1; i <= count; i++) {
+            nodes[i] = local.closestPrecedingFinger(WireProtocol.getId(message));
+        }
+        return WireProtocol.encode(WireProtocol.NODES, nodes, nodes.length);
+    }
+
+    /**
+     * Answers FINGERS with this node's successor list and its distinct fingers, so a
+     * node that has just joined in front of it can seed its own table.
+     */
+    private static ByteBuffer tableResponse(Node local) {
+        NodeRef[] fingers = new NodeRef[FingerTable.SIZE];
+        int count = 0;
+        for (int i = 1; i <= FingerTable.SIZE; i++) {
+            NodeRef finger = local.getFinger(i);
+            if (finger != null && (count == 0 || !finger.equals(fingers[count - 1]))) {
+                fingers[count++] = finger;
+            }
+        }
+        return WireProtocol.encodeTable(local.getSuccessorList(), fingers, count);
+    }
+
+    private static ByteBuffer nodeOrNothing(NodeRef node) {
+        return node != null ? WireProtocol.encode(WireProtocol.NODE, node) : WireProtocol.encode(WireProtocol.NOTHING);
     }
 
     private void shutdownThreadPool() {
@@ -119,10 +579,35 @@ public class CommunicateManager extends Thread {
 
     public void toDie() {
         alive = false;
-        try {
-            this.shutdownThreadPool();
-            serverSocketChannel.close();
-        } catch (IOException e) {
+        this.shutdownThreadPool();
+        Helper.getTransport().close(this);
+    }
+
+    private static class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        // only touched by the selector thread
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // decided by the first byte received, see WireProtocol
+        private Boolean textMode;
+        // completes once the last text request read has been answered; selector thread only
+        private CompletableFuture<Void> lastTextAnswer = CompletableFuture.completedFuture(null);
+        private volatile long lastActive = System.currentTimeMillis();
+
+        private Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        private ByteBuffer growReadBuffer() {
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+            return readBuffer;
         }
     }
 }
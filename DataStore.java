@@ -0,0 +1,531 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The key-value pairs a node is responsible for, kept in a log of memory-mapped
+ * {@link LogSegment} files with an off-heap {@link KeyIndex}, so heap use does
+ * not grow with the data. Writes append a record to the newest segment and point
+ * the index at it; a delete appends a delete record. Once at least half of an
+ * older segment is overwritten or deleted, a background compaction copies what
+ * is still live to the newest segment and removes the file.
+ *
+ * A store opened on a directory replays its segments on start, so the data
+ * survives a restart. Records are in the page cache as soon as they are written,
+ * which survives the process dying; a segment is forced to disk when it fills up
+ * and when the store is closed. A store made without a directory lives in a
+ * temporary one that is removed on close.
+ *
+ * Keys are ordered by the ring id of their key (ties broken by the key bytes),
+ * and the index keeps ids roughly in slot order, so the keys falling in an arc
+ * of the ring are read off a run of slots.
+ */
+public class DataStore {
+
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    // records copied per hold of the write lock while compacting
+    private static final int COMPACTION_BATCH = 256;
+    private static final int DELETE_BATCH_ENTRIES = 512;
+
+    // one thread compacts for every store in the process
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "store-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final KeyIndex index = new KeyIndex();
+    private final TreeMap<Integer, LogSegment> segments = new TreeMap<>();
+    private final boolean temporary;
+    private Path directory;
+    private LogSegment active;
+    private int nextSegmentId = 1;
+    private boolean compactionScheduled;
+    private boolean closed;
+
+    /**
+     * A store in a temporary directory, created on the first write.
+     */
+    public DataStore() {
+        temporary = true;
+    }
+
+    /**
+     * Opens the store in directory, creating it if needed, and loads what it holds.
+     */
+    public DataStore(Path directory) {
+        this.directory = directory;
+        temporary = false;
+        try {
+            Files.createDirectories(directory);
+            List<Integer> ids = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")) {
+                for (Path file : files) {
+                    int id = LogSegment.parseId(file.getFileName().toString());
+                    if (id > 0) {
+                        ids.add(id);
+                    }
+                }
+            }
+            Collections.sort(ids);
+            for (int id : ids) {
+                LogSegment segment = LogSegment.open(directory.resolve(LogSegment.fileName(id)), id);
+                segments.put(id, segment);
+                replay(segment);
+                nextSegmentId = id + 1;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open data store in " + directory, e);
+        }
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+            if (index.size() > 0) {
+                System.out.println("Loaded " + index.size() + " keys from " + directory);
+            }
+            for (LogSegment segment : segments.values()) {
+                if (segment != active && segment.isMostlyDead()) {
+                    scheduleCompaction();
+                }
+            }
+        }
+    }
+
+    private void replay(LogSegment segment) {
+        for (int offset = 0; offset < segment.getWritePosition(); offset += segment.recordLength(offset)) {
+            long id = segment.keyId(offset);
+            int slot = find(id, segment.key(offset));
+            int length = segment.recordLength(offset);
+            if (segment.isDelete(offset)) {
+                segment.addDeadBytes(length);
+                if (slot >= 0) {
+                    markDead(index.location(slot), index.recordLength(slot));
+                    index.remove(slot);
+                }
+            } else if (slot >= 0) {
+                markDead(index.location(slot), index.recordLength(slot));
+                index.update(slot, location(segment, offset), length);
+            } else {
+                index.insert(id, location(segment, offset), length);
+            }
+        }
+    }
+
+    public void put(byte[] key, byte[] value) {
+        long id = Helper.hashBytes(key);
+        lock.writeLock().lock();
+        try {
+            int slot = find(id, key);
+            long location = append(id, key, value);
+            int length = LogSegment.recordSize(key, value);
+            if (slot >= 0) {
+                markDead(index.location(slot), index.recordLength(slot));
+                index.update(slot, location, length);
+            } else {
+                index.insert(id, location, length);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public byte[] get(byte[] key) {
+        long id = Helper.hashBytes(key);
+        lock.readLock().lock();
+        try {
+            int slot = find(id, key);
+            return slot >= 0 ? segment(index.location(slot)).value(offset(index.location(slot))) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean delete(byte[] key) {
+        long id = Helper.hashBytes(key);
+        lock.writeLock().lock();
+        try {
+            int slot = find(id, key);
+            if (slot < 0) {
+                return false;
+            }
+            deleteAt(slot, id, key);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes key only if it still holds this value, so an entry that was
+     * overwritten while being transferred is kept.
+     */
+    public boolean remove(StoreKey key, byte[] value) {
+        lock.writeLock().lock();
+        try {
+            int slot = find(key.getId(), key.getKey());
+            if (slot < 0) {
+                return false;
+            }
+            long location = index.location(slot);
+            if (!segment(location).valueEquals(offset(location), value)) {
+                return false;
+            }
+            deleteAt(slot, key.getId(), key.getKey());
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void deleteAt(int slot, long id, byte[] key) {
+        long deleted = append(id, key, null);
+        markDead(deleted, LogSegment.recordSize(key, null));
+        markDead(index.location(slot), index.recordLength(slot));
+        index.remove(slot);
+    }
+
+    /**
+     * Deletes every key whose id lies in the ring interval (from, to] and returns how
+     * many were deleted.
+     */
+    public int deleteRange(long from, long to) {
+        int deleted = 0;
+        StoreKey cursor = null;
+        List<Map.Entry<StoreKey, byte[]>> batch;
+        while (!(batch = range(from, to, cursor, DELETE_BATCH_ENTRIES, Integer.MAX_VALUE)).isEmpty()) {
+            for (Map.Entry<StoreKey, byte[]> entry : batch) {
+                if (delete(entry.getKey().getKey())) {
+                    deleted++;
+                }
+            }
+            cursor = batch.get(batch.size() - 1).getKey();
+        }
+        return deleted;
+    }
+
+    /**
+     * Returns the next entries whose id lies in the ring interval (from, to], in ring
+     * order starting just after from, skipping everything up to and including after
+     * if it is not null. Stops after maxEntries entries or once maxBytes of keys and
+     * values have been collected, but always returns at least one entry if any is left.
+     */
+    public List<Map.Entry<StoreKey, byte[]>> range(long from, long to, StoreKey after, int maxEntries, int maxBytes) {
+        List<Map.Entry<StoreKey, byte[]>> batch = new ArrayList<>();
+        int bytes = 0;
+        // an interval that wraps past zero is two ranges of ids
+        long[][] segments = from < to
+                ? new long[][] {{from + 1, to}}
+                : new long[][] {{from + 1, Helper.RING_MASK}, {0, to}};
+        lock.readLock().lock();
+        try {
+            // resume in the range holding after, the ones before it are done
+            int first = 0;
+            for (int i = 0; after != null && i < segments.length; i++) {
+                if (after.getId() >= segments[i][0] && after.getId() <= segments[i][1]) {
+                    first = i;
+                }
+            }
+            for (int i = first; i < segments.length; i++) {
+                long[] segment = segments[i];
+                long start = segment[0];
+                StoreKey skip = null;
+                if (i == first && after != null && after.getId() >= start && after.getId() <= segment[1]) {
+                    start = after.getId();
+                    skip = after;
+                }
+                for (Located entry : scan(start, segment[1], skip, maxEntries - batch.size(), maxBytes - bytes)) {
+                    if (batch.size() >= maxEntries || (bytes >= maxBytes && !batch.isEmpty())) {
+                        return batch;
+                    }
+                    byte[] value = segment(entry.location).value(offset(entry.location));
+                    batch.add(new AbstractMap.SimpleImmutableEntry<>(entry.key, value));
+                    bytes += entry.key.getKey().length + value.length;
+                }
+            }
+            return batch;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds, in key order, at least the first wantEntries keys, or the first keys
+     * totalling wantBytes, with an id in [start, end] that come after skip. An id's
+     * slot is at or after its home slot, and home slots rise with the id, so once
+     * enough keys are found at slot limit, the keys that can still come before
+     * them are those with a home up to limit, in the rest of limit's run.
+     */
+    private List<Located> scan(long start, long end, StoreKey skip, int wantEntries, int wantBytes) {
+        List<Located> found = new ArrayList<>();
+        long bytes = 0;
+        int limit = -1;
+        int last = index.home(end);
+        for (int i = index.home(start); i < index.slotCount(); i++) {
+            long location = index.location(i);
+            if (location == 0) {
+                if (limit >= 0 || i > last) {
+                    break;
+                }
+                continue;
+            }
+            long id = index.id(i);
+            if (id < start || id > end || (limit >= 0 && index.home(id) > limit)) {
+                continue;
+            }
+            StoreKey key = new StoreKey(id, segment(location).key(offset(location)));
+            if (skip != null && key.compareTo(skip) <= 0) {
+                continue;
+            }
+            found.add(new Located(key, location));
+            // counted like range does, keys and values only
+            bytes += index.recordLength(i) - LogSegment.HEADER_SIZE;
+            if (limit < 0 && (found.size() >= wantEntries || bytes >= wantBytes)) {
+                limit = i;
+            }
+        }
+        found.sort((a, b) -> a.key.compareTo(b.key));
+        return found;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forces the data to disk, or removes it if the store is temporary. The store
+     * must not be used afterwards.
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            for (LogSegment segment : segments.values()) {
+                if (temporary) {
+                    segment.delete();
+                } else if (segment == active) {
+                    segment.force();
+                }
+            }
+            if (temporary && directory != null) {
+                Files.deleteIfExists(directory);
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to remove " + directory + ": " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The slot holding key, or -1.
+     */
+    private int find(long id, byte[] key) {
+        for (int slot = index.next(id, -1); slot >= 0; slot = index.next(id, slot)) {
+            long location = index.location(slot);
+            if (segment(location).keyEquals(offset(location), key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private long append(long id, byte[] key, byte[] value) {
+        int offset = active != null ? active.append(id, key, value) : -1;
+        if (offset < 0) {
+            roll(LogSegment.recordSize(key, value));
+            offset = active.append(id, key, value);
+        }
+        return location(active, offset);
+    }
+
+    private long copy(LogSegment source, int sourceOffset) {
+        int offset = active.copy(source, sourceOffset);
+        if (offset < 0) {
+            roll(source.recordLength(sourceOffset));
+            offset = active.copy(source, sourceOffset);
+        }
+        return location(active, offset);
+    }
+
+    /**
+     * Starts a new segment with room for at least a record of minSize bytes.
+     */
+    private void roll(int minSize) {
+        if (closed) {
+            throw new IllegalStateException("Data store is closed");
+        }
+        try {
+            if (directory == null) {
+                directory = Files.createTempDirectory("chord-store-");
+                directory.toFile().deleteOnExit();
+            }
+            LogSegment segment = LogSegment.create(directory, nextSegmentId++, Math.max(SEGMENT_SIZE, minSize));
+            if (temporary) {
+                new File(directory.toFile(), LogSegment.fileName(segment.getId())).deleteOnExit();
+            }
+            if (active != null) {
+                active.force();
+                if (active.isMostlyDead()) {
+                    scheduleCompaction();
+                }
+            }
+            segments.put(segment.getId(), segment);
+            active = segment;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to add a segment to " + directory, e);
+        }
+    }
+
+    private void markDead(long location, int length) {
+        LogSegment segment = segment(location);
+        segment.addDeadBytes(length);
+        if (active != null && segment != active && segment.isMostlyDead()) {
+            scheduleCompaction();
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (!compactionScheduled && !closed) {
+            compactionScheduled = true;
+            compactor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Rewrites every older segment that is mostly dead, oldest first. Live records
+     * are copied to the newest segment. A delete record is only copied while an
+     * older segment may still hold the value it deleted; otherwise it is dropped.
+     */
+    private void compact() {
+        List<LogSegment> victims = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            compactionScheduled = false;
+            for (LogSegment segment : segments.values()) {
+                if (segment != active && segment.isMostlyDead()) {
+                    victims.add(segment);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (LogSegment victim : victims) {
+            int offset = 0;
+            while (offset < victim.getWritePosition()) {
+                lock.writeLock().lock();
+                try {
+                    if (closed) {
+                        return;
+                    }
+                    for (int i = 0; i < COMPACTION_BATCH && offset < victim.getWritePosition(); i++) {
+                        keepLive(victim, offset);
+                        offset += victim.recordLength(offset);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            lock.writeLock().lock();
+            try {
+                segments.remove(victim.getId());
+                victim.delete();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void keepLive(LogSegment victim, int offset) {
+        long id = victim.keyId(offset);
+        int slot = find(id, victim.key(offset));
+        if (victim.isDelete(offset)) {
+            if (slot < 0 && segments.firstKey() < victim.getId()) {
+                copy(victim, offset);
+            }
+        } else if (slot >= 0 && index.location(slot) == location(victim, offset)) {
+            index.update(slot, copy(victim, offset), victim.recordLength(offset));
+        }
+    }
+
+    private LogSegment segment(long location) {
+        return segments.get((int) (location >>> 32));
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    private static long location(LogSegment segment, int offset) {
+        return (long) segment.getId() << 32 | offset;
+    }
+
+    static final class StoreKey implements Comparable<StoreKey> {
+
+        private final long id;
+        private final byte[] key;
+
+        StoreKey(byte[] key) {
+            this(Helper.hashBytes(key), key);
+        }
+
+        StoreKey(long id, byte[] key) {
+            this.id = id;
+            this.key = key;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        byte[] getKey() {
+            return key;
+        }
+
+        @Override
+        public int compareTo(StoreKey other) {
+            int c = Long.compare(id, other.id);
+            return c != 0 ? c : Arrays.compareUnsigned(key, other.key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StoreKey && compareTo((StoreKey) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) id;
+        }
+    }
+
+    /**
+     * A key found in the index and where its record is.
+     */
+    private static final class Located {
+
+        private final StoreKey key;
+        private final long location;
+
+        private Located(StoreKey key, long location) {
+            this.key = key;
+            this.location = location;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks whether peers are reachable from the outcome of requests already being
+ * made (lookups, stabilization, heartbeats), so routing can skip unreachable
+ * fingers without probing them first. One failed request makes a peer suspect;
+ * several in a row without a success in between mark it dead. Any successful
+ * request makes it alive again.
+ */
+public class FailureDetector {
+
+    public enum State { ALIVE, SUSPECT, DEAD }
+
+    private static final int DEAD_AFTER_FAILURES = 3;
+
+    private final Map<InetSocketAddress, PeerState> peers = new ConcurrentHashMap<>();
+
+    public void reportSuccess(InetSocketAddress peer) {
+        PeerState state = peers.get(peer);
+        if (state != null) {
+            state.failures = 0;
+        }
+    }
+
+    public void reportFailure(InetSocketAddress peer) {
+        PeerState state = peers.computeIfAbsent(peer, k -> new PeerState());
+        // not atomic; a lost increment only delays a peer being declared dead by one request
+        state.failures++;
+    }
+
+    public State getState(InetSocketAddress peer) {
+        PeerState state = peers.get(peer);
+        if (state == null || state.failures == 0) {
+            // peers we have never talked to are assumed reachable
+            return State.ALIVE;
+        }
+        return state.failures >= DEAD_AFTER_FAILURES ? State.DEAD : State.SUSPECT;
+    }
+
+    /**
+     * True if requests to peer are currently expected to succeed.
+     */
+    public boolean isAvailable(InetSocketAddress peer) {
+        PeerState state = peers.get(peer);
+        return state == null || state.failures == 0;
+    }
+
+    private static final class PeerState {
+        private volatile int failures;
+    }
+}
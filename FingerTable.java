@@ -0,0 +1,145 @@
+import java.util.Objects;
+
+/**
+ * The 32 routing entries of a node, indexed 1..32 like the Chord paper.
+ *
+ * Entries live in parallel arrays of ids and references that are never modified
+ * once published: writers copy the arrays, change them and swap in the new
+ * snapshot through a volatile field. Readers take one snapshot and scan it
+ * without locking, so they can never see an id paired with the wrong node.
+ */
+public class FingerTable {
+
+    public static final int SIZE = 32;
+
+    private final long localId;
+    private volatile Snapshot snapshot = new Snapshot(new long[SIZE + 1], new NodeRef[SIZE + 1], 0);
+
+    public FingerTable(long localId) {
+        this.localId = localId;
+    }
+
+    public NodeRef get(int i) {
+        return snapshot.refs[i];
+    }
+
+    /**
+     * A number that changes whenever an entry does.
+     */
+    public long getVersion() {
+        return snapshot.version;
+    }
+
+    public synchronized void set(int i, NodeRef node) {
+        Snapshot current = snapshot;
+        if (Objects.equals(current.refs[i], node)) {
+            return;
+        }
+        long[] ids = current.ids.clone();
+        NodeRef[] refs = current.refs.clone();
+        ids[i] = node != null ? node.getId() : 0;
+        refs[i] = node;
+        snapshot = new Snapshot(ids, refs, current.version + 1);
+        Helper.getMetrics().increment(PerformanceMetrics.Counter.FINGER_CHANGES);
+    }
+
+    /**
+     * Clears every entry pointing at node.
+     */
+    public synchronized void remove(NodeRef node) {
+        Snapshot current = snapshot;
+        long[] ids = null;
+        NodeRef[] refs = null;
+        for (int i = 1; i <= SIZE; i++) {
+            if (node.equals(current.refs[i])) {
+                if (refs == null) {
+                    ids = current.ids.clone();
+                    refs = current.refs.clone();
+                }
+                ids[i] = 0;
+                refs[i] = null;
+                Helper.getMetrics().increment(PerformanceMetrics.Counter.FINGER_CHANGES);
+            }
+        }
+        if (refs != null) {
+            snapshot = new Snapshot(ids, refs, current.version + 1);
+        }
+    }
+
+    /**
+     * Returns the highest index holding node, or 0 if no entry does.
+     */
+    public int lastIndexOf(NodeRef node) {
+        NodeRef[] refs = snapshot.refs;
+        for (int i = SIZE; i > 0; i--) {
+            if (node.equals(refs[i])) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the available finger closest to, but strictly preceding, findId on
+     * the ring, or null if no such finger lies between this node and findId.
+     * Availability is read from detector; no requests are made.
+     */
+    public NodeRef closestPreceding(long findId, FailureDetector detector) {
+        Snapshot current = snapshot;
+        long findIdRelative = Helper.computeRelativeId(findId, localId);
+        for (int i = SIZE; i > 0; i--) {
+            NodeRef finger = current.refs[i];
+            if (finger == null) {
+                continue;
+            }
+            long fingerRelative = Helper.computeRelativeId(current.ids[i], localId);
+            if (fingerRelative > 0 && fingerRelative < findIdRelative && detector.isAvailable(finger.getAddress())) {
+                return finger;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fills out with up to out.length distinct available fingers preceding findId,
+     * closest first, and returns how many were written.
+     */
+    public int closestPreceding(long findId, FailureDetector detector, NodeRef[] out) {
+        Snapshot current = snapshot;
+        long findIdRelative = Helper.computeRelativeId(findId, localId);
+        int count = 0;
+        for (int i = SIZE; i > 0 && count < out.length; i--) {
+            NodeRef finger = current.refs[i];
+            if (finger == null || contains(out, count, finger)) {
+                continue;
+            }
+            long fingerRelative = Helper.computeRelativeId(current.ids[i], localId);
+            if (fingerRelative > 0 && fingerRelative < findIdRelative && detector.isAvailable(finger.getAddress())) {
+                out[count++] = finger;
+            }
+        }
+        return count;
+    }
+
+    private static boolean contains(NodeRef[] nodes, int count, NodeRef node) {
+        for (int i = 0; i < count; i++) {
+            if (nodes[i].equals(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Snapshot {
+
+        private final long[] ids;
+        private final NodeRef[] refs;
+        private final long version;
+
+        private Snapshot(long[] ids, NodeRef[] refs, long version) {
+            this.ids = ids;
+            this.refs = refs;
+            this.version = version;
+        }
+    }
+}
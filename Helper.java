@@ -2,68 +2,105 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 
 public class Helper {
     
     private static final int BITWISE_MODULO = 32;
 
-    private static final HashMap<Integer, Long> powerOfTwo = new HashMap<>();
+    public static final long RING_MASK = (1L << BITWISE_MODULO) - 1;
 
-    static {
-        long base = 1;
-        for (int i = 0; i <= 32; i++) {
-            powerOfTwo.put(i, base);
-            base *= 2;
+    private static volatile Transport transport;
+
+    private static final PerformanceMetrics metrics = new PerformanceMetrics();
+
+    private static volatile Path dataDirectory;
+
+
+    private static final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Unable to compute hash", e);
         }
-    }
+    });
 
+    private static final ThreadLocal<byte[]> digestOutput = ThreadLocal.withInitial(() -> new byte[20]);
 
+    /**
+     * Hashes the full IP bytes and port of addr. Callers should keep the result,
+     * normally by holding a {@link NodeRef}, rather than hashing the same peer again.
+     */
     public static long hashSocketAddress(InetSocketAddress addr) {
-        int i = addr.hashCode();
-        return compressIntToHash(i);
+        MessageDigest md = digest.get();
+        md.update(addr.getAddress().getAddress());
+        int port = addr.getPort();
+        md.update((byte) (port >>> 8));
+        md.update((byte) port);
+        return finishHash(md);
+    }
+
+    /**
+     * Id of the index-th virtual node at addr. The first one has the id of the
+     * address itself.
+     */
+    public static long hashSocketAddress(InetSocketAddress addr, int index) {
+        if (index == 0) {
+            return hashSocketAddress(addr);
+        }
+        MessageDigest md = digest.get();
+        md.update(addr.getAddress().getAddress());
+        int port = addr.getPort();
+        md.update((byte) (port >>> 8));
+        md.update((byte) port);
+        md.update((byte) (index >>> 8));
+        md.update((byte) index);
+        return finishHash(md);
     }
 
     public static long hashString(String s) {
-        int i = s.hashCode();
-        return compressIntToHash(i);
+        return hashBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static long hashBytes(byte[] bytes) {
+        MessageDigest md = digest.get();
+        md.update(bytes);
+        return finishHash(md);
     }
+
 /**
- * Compresses an integer into a compact hash value using SHA-1 algorithm.
- * Takes an integer, applies SHA-1 hashing, and then compresses the hash to a long value 
- * by using the first 4 bytes of the hash.
+ * Completes the SHA-1 digest into a reused per-thread buffer and compresses it
+ * to a 32-bit id by using the first 4 bytes of the hash.
  * */
-    private static long compressIntToHash(int i) {
+    private static long finishHash(MessageDigest md) {
+        byte[] hash = digestOutput.get();
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            byte[] bytes = ByteBuffer.allocate(4).putInt(i).array();
-            md.update(bytes);
-            byte[] hash = md.digest();
-            return ByteBuffer.wrap(Arrays.copyOf(hash, 4)).getInt() & 0xFFFFFFFFL;
-        } catch (NoSuchAlgorithmException e) {
+            md.digest(hash, 0, hash.length);
+        } catch (DigestException e) {
             throw new RuntimeException("Unable to compute hash", e);
         }
+        return ((hash[0] & 0xFFL) << 24) | ((hash[1] & 0xFFL) << 16) | ((hash[2] & 0xFFL) << 8) | (hash[3] & 0xFFL);
     }
 	
     public static long computeRelativeId(long universal, long local) {
         long difference = universal - local;
         if (difference < 0) {
-            difference += powerOfTwo.get(BITWISE_MODULO);
+            difference += 1L << BITWISE_MODULO;
         }
         return difference;
     }
 
-    public static String hexIdAndPosition(InetSocketAddress addr) {
-        long hash = hashSocketAddress(addr);
+    public static String hexIdAndPosition(NodeRef node) {
+        long hash = node.getId();
         return (longTo8DigitHex(hash) + " (" + hash * 100 / Helper.calculatePowerOfTwo(32) + "%)");
     }
 
@@ -72,83 +109,177 @@ public class Helper {
 	}
 	
     public static long calculateNodePosition(long nodeid, int i) {
-        return (nodeid + powerOfTwo.get(i - 1)) % powerOfTwo.get(32);
+        return (nodeid + (1L << (i - 1))) & RING_MASK;
     }
 
     public static long calculatePowerOfTwo(int k) {
-        return powerOfTwo.get(k);
+        return 1L << k;
     }
-    public static InetSocketAddress requestAddress (InetSocketAddress server, String req) {
+    public static NodeRef requestNode (NodeRef server, ByteBuffer req) {
+		return requestNodeAsync(server, req).join();
+	}
+
+	public static CompletableFuture<NodeRef> requestNodeAsync(NodeRef server, ByteBuffer req) {
 
 		// invalid input, return null
 		if (server == null || req == null) {
-			return null;
+			return CompletableFuture.completedFuture(null);
 		}
 
 		// send request to server
-		String response = sendRequest(server, req);
+		return sendRequestAsync(server, req).thenApply(response -> {
 
-		// if response is null, return null
-		if (response == null) {
-			return null;
-		}
+			// if response is null, return null
+			if (response == null) {
+				return null;
+			}
 
-		// or server cannot find anything, return server itself 
-		else if (response.startsWith("NOTHING"))
-			return server;
+			switch (WireProtocol.opcode(response)) {
+				// server cannot find anything, return server itself
+				case WireProtocol.NOTHING:
+					return server;
 
-		// server find something, 
-		// using response to create, might fail then and return null
-		else {
-			InetSocketAddress ret = Helper.createSocketAddress(response.split("_")[1]);
-			return ret;
-		}
+				// server find something
+				case WireProtocol.NODE:
+					response.get();
+					return WireProtocol.getNode(response);
+
+				// server does not understand the request
+				default:
+					return null;
+			}
+		});
+	}
+
+	/**
+	 * Sends a request frame built by {@link WireProtocol} and returns the response
+	 * positioned at its opcode, or null if the server could not be reached.
+	 * Must not be called from a callback running on the transport thread.
+	 */
+	public static ByteBuffer sendRequest(NodeRef server, ByteBuffer req) {
+		return sendRequestAsync(server, req).join();
+	}
+
+	/**
+	 * Sends a request to whichever node is the default one at server, for callers
+	 * that only know an address, such as a join contact.
+	 */
+	public static ByteBuffer sendRequest(InetSocketAddress server, ByteBuffer req) {
+		return sendRequestAsync(server, 0, req).join();
 	}
 
+	/**
+	 * Asynchronous form of {@link #sendRequest}; the future completes with null
+	 * rather than exceptionally when the server could not be reached.
+	 */
+	public static CompletableFuture<ByteBuffer> sendRequestAsync(NodeRef server, ByteBuffer req) {
+		if (server == null)
+			return CompletableFuture.completedFuture(null);
+		return sendRequestAsync(server.getAddress(), server.getId(), req);
+	}
 
-	public static String sendRequest(InetSocketAddress server, String req) {
+	private static CompletableFuture<ByteBuffer> sendRequestAsync(InetSocketAddress server, long target, ByteBuffer req) {
 
 		// invalid input
 		if (server == null || req == null)
-			return null;
-
-		Socket talkSocket = null;
-
-		// try to open talkSocket, output request to this socket
-		// return null if fail to do so
-		try {
-			talkSocket = new Socket(server.getAddress(),server.getPort());
-			PrintStream output = new PrintStream(talkSocket.getOutputStream());
-			output.println(req);
-		} catch (IOException e) {
-			//System.out.println("\nCannot send request to "+server.toString()+"\nRequest is: "+req+"\n");
-			return null;
-		}
+			return CompletableFuture.completedFuture(null);
 
-		// sleep for a short time, waiting for response
-		try {
-			Thread.sleep(60);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+		byte opcode = WireProtocol.frameOpcode(req);
+		FailureDetector failureDetector = getFailureDetector();
+		long start = nanoTime();
+		return getTransport().request(server, target, req).handle((response, error) -> {
+			long elapsed = nanoTime() - start;
+			metrics.recordClientRequest(opcode, elapsed, error == null);
+			if (error != null) {
+				failureDetector.reportFailure(server);
+				return null;
+			}
+			failureDetector.reportSuccess(server);
+			if (answeredAtOnce(opcode)) {
+				getTransport().getRttEstimator().report(server, elapsed);
+			}
+			return response;
+		});
+	}
 
-		// get input stream, try to read something from it
-		InputStream input = null;
-		try {
-			input = talkSocket.getInputStream();
-		} catch (IOException e) {
-			System.out.println("Cannot get input stream from "+server.toString()+"\nRequest is: "+req+"\n");
+	/**
+	 * True for requests the peer answers from its own state, whose response time is
+	 * a round trip; the others wait on further requests or on replicas.
+	 */
+	private static boolean answeredAtOnce(byte opcode) {
+		switch (opcode) {
+			case WireProtocol.FINDSUCC:
+			case WireProtocol.PUT:
+			case WireProtocol.DELETE:
+			case WireProtocol.TRANSFER:
+			case WireProtocol.DROP:
+				return false;
+			default:
+				return true;
 		}
-		String response = Helper.inputStreamToString(input);
-
-		// try to close socket
-		try {
-			talkSocket.close();
-		} catch (IOException e) {
-			throw new RuntimeException(
-					"Cannot close socket", e);
+	}
+
+	/**
+	 * Replaces the transport every node in this JVM uses. Must be called before the
+	 * first node is created; the default is TCP through an {@link AsyncTransport}.
+	 */
+	public static synchronized void setTransport(Transport replacement) {
+		transport = replacement;
+	}
+
+	public static Transport getTransport() {
+		Transport current = transport;
+		if (current == null) {
+			synchronized (Helper.class) {
+				if (transport == null) {
+					AsyncTransport async = new AsyncTransport();
+					async.start();
+					transport = async;
+				}
+				current = transport;
+			}
 		}
-		return response;
+		return current;
+	}
+
+	/**
+	 * Wall time in milliseconds, or virtual time under a simulated transport.
+	 */
+	public static long currentTimeMillis() {
+		return getTransport().currentTimeMillis();
+	}
+
+	public static long nanoTime() {
+		return getTransport().nanoTime();
+	}
+
+	public static <T> CompletableFuture<T> completeOnTimeout(CompletableFuture<T> future, T value, long timeoutMs) {
+		return getTransport().completeOnTimeout(future, value, timeoutMs);
+	}
+
+	public static FailureDetector getFailureDetector() {
+		return getTransport().getFailureDetector();
+	}
+
+	public static PerformanceMetrics getMetrics() {
+		return metrics;
+	}
+
+	public static RttEstimator getRttEstimator() {
+		return getTransport().getRttEstimator();
+	}
+
+	/**
+	 * Makes every node created afterwards keep its data in a directory named after
+	 * its id under directory, where a restarted node finds it again. Without one,
+	 * data lives in temporary directories that are removed when the node stops.
+	 */
+	public static void setDataDirectory(Path directory) {
+		dataDirectory = directory;
+	}
+
+	public static Path getDataDirectory() {
+		return dataDirectory;
 	}
     public static InetSocketAddress createSocketAddress(String addr) {
         if (addr == null || !addr.contains(":")) {
@@ -0,0 +1,144 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap hash index from key id to where the key's record sits in the log.
+ * Slots live in a direct buffer, so the index costs no heap and no garbage
+ * collection work however many keys it holds. Each 16 byte slot is
+ * <pre>
+ *   location (8) | key id (4) | record length (4)
+ * </pre>
+ * with location 0 meaning empty. Different keys may share an id, so callers
+ * check the key itself at each slot with that id.
+ *
+ * Key ids are already uniform hashes, so the home slot of an id is simply its
+ * top bits: slots are in id order apart from the short runs of linear probing,
+ * which is what lets a range of ids be read off a run of slots. Probing never
+ * wraps; it runs into a few spare slots past the end instead.
+ *
+ * Not thread-safe; {@link DataStore} guards it with its lock.
+ */
+public class KeyIndex {
+
+    private static final int SLOT_SIZE = 16;
+    private static final int MIN_BITS = 10;
+    private static final int OVERFLOW_SLOTS = 64;
+
+    private ByteBuffer slots;
+    private int bits;
+    private int size;
+
+    public KeyIndex() {
+        allocate(MIN_BITS);
+    }
+
+    private void allocate(int bits) {
+        this.bits = bits;
+        slots = ByteBuffer.allocateDirect(((1 << bits) + OVERFLOW_SLOTS) * SLOT_SIZE);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int slotCount() {
+        return slots.capacity() / SLOT_SIZE;
+    }
+
+    /**
+     * The first slot an id can occupy.
+     */
+    public int home(long id) {
+        return (int) (id >>> (32 - bits));
+    }
+
+    public long location(int slot) {
+        return slots.getLong(slot * SLOT_SIZE);
+    }
+
+    public long id(int slot) {
+        return slots.getInt(slot * SLOT_SIZE + 8) & Helper.RING_MASK;
+    }
+
+    public int recordLength(int slot) {
+        return slots.getInt(slot * SLOT_SIZE + 12);
+    }
+
+    /**
+     * The slot after slot holding id, or the first one from home(id) if slot is
+     * -1; -1 once there is none. Iterate with this to see every key with that id.
+     */
+    public int next(long id, int slot) {
+        for (int i = slot < 0 ? home(id) : slot + 1; i < slotCount(); i++) {
+            long location = location(i);
+            if (location == 0) {
+                return -1;
+            }
+            if (id(i) == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void update(int slot, long location, int recordLength) {
+        slots.putLong(slot * SLOT_SIZE, location).putInt(slot * SLOT_SIZE + 12, recordLength);
+    }
+
+    public void insert(long id, long location, int recordLength) {
+        if (size >= 1 << (bits - 1)) {
+            grow();
+        }
+        while (!tryInsert(id, location, recordLength)) {
+            grow();
+        }
+        size++;
+    }
+
+    private boolean tryInsert(long id, long location, int recordLength) {
+        for (int i = home(id); i < slotCount(); i++) {
+            if (location(i) == 0) {
+                slots.putInt(i * SLOT_SIZE + 8, (int) id);
+                update(i, location, recordLength);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Empties slot and shifts later entries of its run back, so lookups never
+     * need to skip over holes.
+     */
+    public void remove(int slot) {
+        int hole = slot;
+        for (int i = slot + 1; i < slotCount() && location(i) != 0; i++) {
+            if (home(id(i)) <= hole) {
+                slots.put(hole * SLOT_SIZE, slots, i * SLOT_SIZE, SLOT_SIZE);
+                hole = i;
+            }
+        }
+        slots.putLong(hole * SLOT_SIZE, 0);
+        size--;
+    }
+
+    private void grow() {
+        ByteBuffer old = slots;
+        int oldSlots = slotCount();
+        int newBits = bits + 1;
+        // a run at the end that does not fit the spare slots needs a larger table still
+        while (!rehash(old, oldSlots, newBits)) {
+            newBits++;
+        }
+    }
+
+    private boolean rehash(ByteBuffer old, int oldSlots, int newBits) {
+        allocate(newBits);
+        for (int i = 0; i < oldSlots; i++) {
+            long location = old.getLong(i * SLOT_SIZE);
+            if (location != 0 && !tryInsert(old.getInt(i * SLOT_SIZE + 8) & Helper.RING_MASK, location, old.getInt(i * SLOT_SIZE + 12))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
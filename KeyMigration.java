@@ -0,0 +1,103 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Hands the keys of one ring interval over to the node that now owns them. Keys
+ * are sent in batches of bounded size, one TRANSFER request at a time, and each
+ * batch is removed from the local store only once the target has acknowledged it.
+ *
+ * The migration remembers the last key that was acknowledged, so if a batch fails
+ * it can be run again later and carries on from there instead of starting over.
+ * Batches are sent asynchronously, so a migration never holds up request handling.
+ */
+public class KeyMigration {
+
+    private static final int MAX_BATCH_ENTRIES = 512;
+    private static final int MAX_BATCH_BYTES = 1024 * 1024;
+
+    private final DataStore store;
+    private final NodeRef target;
+    private final long from;
+    private final long to;
+    private final boolean move;
+    private DataStore.StoreKey cursor;
+    private CompletableFuture<Boolean> running;
+    private volatile boolean cancelled;
+    private volatile boolean finished;
+
+    /**
+     * Prepares moving the keys whose id lies in the ring interval (from, to] to target.
+     */
+    public KeyMigration(DataStore store, NodeRef target, long from, long to) {
+        this(store, target, from, to, true);
+    }
+
+    /**
+     * Prepares sending the keys in (from, to] to target, removing them locally once
+     * acknowledged only if move is set. Without it the keys are copied, as when
+     * bringing a replica up to date.
+     */
+    public KeyMigration(DataStore store, NodeRef target, long from, long to, boolean move) {
+        this.store = store;
+        this.target = target;
+        this.from = from;
+        this.to = to;
+        this.move = move;
+    }
+
+    public NodeRef getTarget() {
+        return target;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Sends the remaining batches. The future completes with true once the interval
+     * is empty, or false if a batch failed or the migration was cancelled. Calling
+     * this while a run is in progress returns that run.
+     */
+    public synchronized CompletableFuture<Boolean> run() {
+        if (running == null || running.isDone()) {
+            running = next();
+        }
+        return running;
+    }
+
+    /**
+     * Stops the migration after the batch currently in flight.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private CompletableFuture<Boolean> next() {
+        if (cancelled) {
+            return CompletableFuture.completedFuture(false);
+        }
+        List<Map.Entry<DataStore.StoreKey, byte[]>> batch = store.range(from, to, cursor, MAX_BATCH_ENTRIES, MAX_BATCH_BYTES);
+        if (batch.isEmpty()) {
+            finished = true;
+            return CompletableFuture.completedFuture(true);
+        }
+        return Helper.sendRequestAsync(target, WireProtocol.encodeTransfer(batch)).thenCompose(response -> {
+            if (!acknowledged(response)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            if (move) {
+                for (Map.Entry<DataStore.StoreKey, byte[]> entry : batch) {
+                    store.remove(entry.getKey(), entry.getValue());
+                }
+            }
+            cursor = batch.get(batch.size() - 1).getKey();
+            return next();
+        });
+    }
+
+    private static boolean acknowledged(ByteBuffer response) {
+        return response != null && WireProtocol.opcode(response) == WireProtocol.ACK;
+    }
+}
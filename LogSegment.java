@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * One append-only file of a {@link DataStore}, mapped into memory as a whole.
+ * Records are written back to back:
+ * <pre>
+ *   record length (4) | crc (4) | key id (4) | key length (4) | value length (4) | key | value
+ * </pre>
+ * The length covers the whole record, a value length of -1 marks a delete, and
+ * the crc covers everything after itself. The file is created at its full size,
+ * so the first record length that is 0 or fails its crc marks the end of what
+ * was written.
+ *
+ * Not thread-safe on its own: the store appends under its write lock, and a
+ * record that has been written is never changed, so it can be read under the
+ * read lock.
+ */
+public class LogSegment {
+
+    public static final int HEADER_SIZE = 20;
+
+    private final int id;
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+    // bytes of records that were overwritten, deleted or are deletes themselves
+    private long deadBytes;
+
+    private LogSegment(int id, Path file, MappedByteBuffer buffer) {
+        this.id = id;
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    public static LogSegment create(Path directory, int id, int size) throws IOException {
+        Path file = directory.resolve(fileName(id));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new LogSegment(id, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /**
+     * Maps an existing segment and finds the end of its valid records.
+     */
+    public static LogSegment open(Path file, int id) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            LogSegment segment = new LogSegment(id, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            int position = 0;
+            while (segment.isValid(position)) {
+                position += segment.recordLength(position);
+            }
+            segment.writePosition = position;
+            return segment;
+        }
+    }
+
+    public static String fileName(int id) {
+        return String.format("segment-%08d.log", id);
+    }
+
+    /**
+     * The segment id in a file name written by {@link #fileName}, or -1 if it is not one.
+     */
+    public static int parseId(String name) {
+        if (!name.startsWith("segment-") || !name.endsWith(".log")) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(8, name.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static int recordSize(byte[] key, byte[] value) {
+        return HEADER_SIZE + key.length + (value != null ? value.length : 0);
+    }
+
+    /**
+     * Appends a record, value null for a delete, and returns its offset, or -1 if
+     * the segment has no room left for it.
+     */
+    public int append(long keyId, byte[] key, byte[] value) {
+        int length = recordSize(key, value);
+        if (buffer.capacity() - writePosition < length) {
+            return -1;
+        }
+        int offset = writePosition;
+        buffer.putInt(offset + 8, (int) keyId);
+        buffer.putInt(offset + 12, key.length);
+        buffer.putInt(offset + 16, value != null ? value.length : -1);
+        buffer.put(offset + HEADER_SIZE, key);
+        if (value != null) {
+            buffer.put(offset + HEADER_SIZE + key.length, value);
+        }
+        seal(offset, length);
+        return offset;
+    }
+
+    /**
+     * Appends a copy of the record at offset in source, as compaction does.
+     */
+    public int copy(LogSegment source, int offset) {
+        int length = source.recordLength(offset);
+        if (buffer.capacity() - writePosition < length) {
+            return -1;
+        }
+        int target = writePosition;
+        buffer.put(target, source.buffer, offset, length);
+        writePosition += length;
+        return target;
+    }
+
+    private void seal(int offset, int length) {
+        buffer.putInt(offset + 4, crc(offset, length));
+        // the length goes last, so a record is only seen once it is complete
+        buffer.putInt(offset, length);
+        writePosition += length;
+    }
+
+    private int crc(int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(offset + 8, length - 8));
+        return (int) crc.getValue();
+    }
+
+    private boolean isValid(int offset) {
+        if (buffer.capacity() - offset < HEADER_SIZE) {
+            return false;
+        }
+        int length = buffer.getInt(offset);
+        int keyLength = buffer.getInt(offset + 12);
+        int valueLength = buffer.getInt(offset + 16);
+        return length >= HEADER_SIZE && length <= buffer.capacity() - offset && keyLength >= 0 && valueLength >= -1
+                && HEADER_SIZE + (long) keyLength + Math.max(valueLength, 0) == length
+                && buffer.getInt(offset + 4) == crc(offset, length);
+    }
+
+    public int recordLength(int offset) {
+        return buffer.getInt(offset);
+    }
+
+    public long keyId(int offset) {
+        return buffer.getInt(offset + 8) & Helper.RING_MASK;
+    }
+
+    public boolean isDelete(int offset) {
+        return buffer.getInt(offset + 16) < 0;
+    }
+
+    public byte[] key(int offset) {
+        byte[] key = new byte[buffer.getInt(offset + 12)];
+        buffer.get(offset + HEADER_SIZE, key);
+        return key;
+    }
+
+    public boolean keyEquals(int offset, byte[] key) {
+        return buffer.getInt(offset + 12) == key.length
+                && buffer.slice(offset + HEADER_SIZE, key.length).equals(ByteBuffer.wrap(key));
+    }
+
+    public byte[] value(int offset) {
+        int valueLength = buffer.getInt(offset + 16);
+        if (valueLength < 0) {
+            return null;
+        }
+        byte[] value = new byte[valueLength];
+        buffer.get(offset + HEADER_SIZE + buffer.getInt(offset + 12), value);
+        return value;
+    }
+
+    public boolean valueEquals(int offset, byte[] value) {
+        int valueLength = buffer.getInt(offset + 16);
+        return valueLength == value.length
+                && buffer.slice(offset + HEADER_SIZE + buffer.getInt(offset + 12), valueLength).equals(ByteBuffer.wrap(value));
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getWritePosition() {
+        return writePosition;
+    }
+
+    public void addDeadBytes(int bytes) {
+        deadBytes += bytes;
+    }
+
+    /**
+     * Whether at least half of what was written is no longer needed.
+     */
+    public boolean isMostlyDead() {
+        return writePosition > 0 && deadBytes * 2 >= writePosition;
+    }
+
+    /**
+     * Writes the mapped pages back to the file.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    public void delete() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Unable to delete " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Ring ranges (predecessor, owner] this node has recently seen owned by a given
+ * node, so that repeated lookups into the same arc need at most one hop: either
+ * none, when the caller checks ownership with the owner itself, or one STEP to the
+ * cached predecessor to confirm its successor still is the owner.
+ *
+ * Ranges are kept sorted by their end, the owner's id, in parallel primitive
+ * arrays; a lookup is a binary search for the first range ending at or after the
+ * id. Entries expire after a fixed time, are dropped when their owner turns out
+ * to be wrong or a newer range overlaps them, and when the cache is full the
+ * entry closest to expiring is evicted.
+ */
+public class LookupCache {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final long DEFAULT_TTL_MS = 30000;
+
+    private final int capacity;
+    private final long ttl;
+    private final long[] starts;
+    private final long[] ends;
+    private final long[] expires;
+    private final Entry[] entries;
+    private int size;
+
+    public LookupCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL_MS);
+    }
+
+    public LookupCache(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+        starts = new long[capacity];
+        ends = new long[capacity];
+        expires = new long[capacity];
+        entries = new Entry[capacity];
+    }
+
+    /**
+     * Returns the live entry whose range covers id, or null if there is none.
+     */
+    public synchronized Entry get(long id) {
+        if (size == 0) {
+            return null;
+        }
+        int i = ceiling(id);
+        // past the last range the ring wraps to the first one
+        if (i == size) {
+            i = 0;
+        }
+        if (!LookupEngine.isBetween(id, starts[i], ends[i]) || expires[i] < Helper.currentTimeMillis()) {
+            return null;
+        }
+        return entries[i];
+    }
+
+    /**
+     * Records that owner is the successor of predecessor, and so responsible for
+     * the ring interval (predecessor, owner].
+     */
+    public synchronized void put(NodeRef predecessor, NodeRef owner) {
+        long start = predecessor.getId();
+        long end = owner.getId();
+        if (start == end) {
+            // a node that is its own predecessor owns the whole ring, which says nothing useful
+            return;
+        }
+        long now = Helper.currentTimeMillis();
+        int i = ceiling(end);
+        if (i == size || ends[i] != end) {
+            if (size == capacity) {
+                remove(evictionCandidate(now));
+                i = ceiling(end);
+            }
+            System.arraycopy(starts, i, starts, i + 1, size - i);
+            System.arraycopy(ends, i, ends, i + 1, size - i);
+            System.arraycopy(expires, i, expires, i + 1, size - i);
+            System.arraycopy(entries, i, entries, i + 1, size - i);
+            size++;
+        }
+        starts[i] = start;
+        ends[i] = end;
+        expires[i] = now + ttl;
+        entries[i] = new Entry(predecessor, owner);
+        // ranges that overlap the new one were learned before the ring changed
+        for (int j = size - 1; j >= 0; j--) {
+            if (j != i && (LookupEngine.isBetween(ends[j], start, end) || LookupEngine.isBetween(end, starts[j], ends[j]))) {
+                remove(j);
+                if (j < i) {
+                    i--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every range attributed to owner.
+     */
+    public synchronized void invalidate(NodeRef owner) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (entries[i].owner.equals(owner)) {
+                remove(i);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Index of the first range whose end is at least id, or size if there is none.
+     */
+    private int ceiling(long id) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ends[mid] < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int evictionCandidate(long now) {
+        int oldest = 0;
+        for (int i = 0; i < size; i++) {
+            if (expires[i] < now) {
+                return i;
+            }
+            if (expires[i] < expires[oldest]) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+
+    private void remove(int i) {
+        int tail = size - i - 1;
+        System.arraycopy(starts, i + 1, starts, i, tail);
+        System.arraycopy(ends, i + 1, ends, i, tail);
+        System.arraycopy(expires, i + 1, expires, i, tail);
+        System.arraycopy(entries, i + 1, entries, i, tail);
+        entries[--size] = null;
+    }
+
+    public static final class Entry {
+
+        private final NodeRef predecessor;
+        private final NodeRef owner;
+
+        private Entry(NodeRef predecessor, NodeRef owner) {
+            this.predecessor = predecessor;
+            this.owner = owner;
+        }
+
+        public NodeRef getPredecessor() {
+            return predecessor;
+        }
+
+        public NodeRef getOwner() {
+            return owner;
+        }
+    }
+}
@@ -0,0 +1,542 @@
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves the successor of an id by asking nodes for their next hop, driven from
+ * the local node. A STEP response carries the responder's successor together with
+ * its closest preceding fingers, so each hop costs one round trip and the lookup
+ * ends as soon as the id falls between a responder and its successor.
+ *
+ * Candidates from every response go into one shortlist ordered by how close they
+ * are behind the id. With a parallelism above one, that many requests to the best
+ * unqueried candidates are kept in flight and answers are used in the order they
+ * arrive, so a slow or dead intermediate node only costs the time of its faster
+ * siblings.
+ *
+ * Lookups never block a thread while waiting on the network: every hop is an
+ * asynchronous request and the lookup advances from its completion callback.
+ *
+ * In recursive mode the request is instead forwarded from node to node, each one
+ * passing a ROUTE to its closest preceding finger, and the node that finds the
+ * owner sends a ROUTED reply straight back to the origin, matched by request id.
+ * That saves the return trip to the origin on every hop, but each hop is also
+ * acknowledged and the reply is one more request, so it only pays off where
+ * network latency outweighs the cost of handling a message: on a loopback ring
+ * iterative mode is faster. If no reply arrives in time the origin falls back to
+ * an iterative lookup.
+ *
+ * Every STEP answer also tells which range its responder's successor owns; those
+ * ranges go into the node's {@link LookupCache}. An id in a cached range starts
+ * its lookup at the cached predecessor, which confirms the owner in one hop, or
+ * is answered from the cache directly if the caller will have the owner confirm
+ * it anyway.
+ *
+ * A batch of ids is resolved together: ids are grouped by their next hop and each
+ * group costs one STEPS request, which returns the next hop for every id in it.
+ * Sorted ids that are close on the ring share most of their path, so the number
+ * of requests grows far slower than the number of ids.
+ *
+ * Once round trip times have been measured, the next hop is picked among the
+ * few candidates closest behind the id by expected time to the owner rather than
+ * by distance alone: a slightly less useful hop to a nearby node can beat the
+ * best one across the network.
+ */
+public class LookupEngine {
+
+    public enum Mode { ITERATIVE, RECURSIVE }
+
+    private static final int MAX_HOPS = 64;
+    private static final int CANDIDATES_PER_STEP = 4;
+    private static final long HOP_TIMEOUT_MS = 1000;
+    private static final long ROUTE_TIMEOUT_MS = 3000;
+    private static final int MAX_FORWARD_ATTEMPTS = 3;
+    private static final int MAX_STEP_ATTEMPTS = 3;
+
+    private static final AtomicLong nextRequestId = new AtomicLong(new Random().nextLong());
+
+    private final Node local;
+    private volatile int parallelism = 1;
+    private volatile Mode mode = Mode.ITERATIVE;
+    private final Map<Long, CompletableFuture<LookupResult>> pendingRoutes = new ConcurrentHashMap<>();
+
+    public LookupEngine(Node local) {
+        this.local = local;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Lookup parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public LookupResult lookup(long id) {
+        return lookupAsync(id).join();
+    }
+
+    public CompletableFuture<LookupResult> lookupAsync(long id) {
+        return lookupAsync(id, false);
+    }
+
+    /**
+     * Resolves id. With trustCache set, an owner found in the lookup cache is
+     * returned without any hop; the caller must be prepared for the owner to reject
+     * the request as not its own.
+     */
+    public CompletableFuture<LookupResult> lookupAsync(long id, boolean trustCache) {
+        long start = Helper.nanoTime();
+        NodeRef self = local.getNodeRef();
+        NodeRef successor = local.getSuccessor();
+        if (successor == null || successor.equals(self)) {
+            return CompletableFuture.completedFuture(recorded(new LookupResult(self, 0, new long[0], Helper.nanoTime() - start)));
+        }
+        if (isBetween(id, self.getId(), successor.getId())) {
+            return CompletableFuture.completedFuture(recorded(new LookupResult(successor, 0, new long[0], Helper.nanoTime() - start)));
+        }
+        LookupCache.Entry cached = local.getLookupCache().get(id);
+        if (trustCache && cached != null && Helper.getFailureDetector().isAvailable(cached.getOwner().getAddress())) {
+            return CompletableFuture.completedFuture(recorded(new LookupResult(cached.getOwner(), 0, new long[0], Helper.nanoTime() - start, true)));
+        }
+        NodeRef hint = cached != null ? cached.getPredecessor() : null;
+        if (mode == Mode.RECURSIVE) {
+            return lookupRecursive(id, start).thenCompose(result ->
+                    result != null ? CompletableFuture.completedFuture(result) : new IterativeLookup(id, start, successor).start(hint));
+        }
+        return new IterativeLookup(id, start, successor).start(hint);
+    }
+
+    public NodeRef[] lookupBatch(long[] ids) {
+        return lookupBatchAsync(ids).join();
+    }
+
+    /**
+     * Resolves the owners of ids, returned in the same order. Ids whose batch hop
+     * fails are finished with a lookup of their own.
+     */
+    public CompletableFuture<NodeRef[]> lookupBatchAsync(long[] ids) {
+        long[] sorted = Arrays.stream(ids).sorted().distinct().toArray();
+        return new BatchLookup(sorted).start().thenApply(owners -> {
+            NodeRef[] result = new NodeRef[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                result[i] = owners[Arrays.binarySearch(sorted, ids[i])];
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Starts a recursive lookup. The future completes with null if it could not be
+     * started or no reply arrived in time.
+     */
+    private CompletableFuture<LookupResult> lookupRecursive(long id, long start) {
+        long requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<LookupResult> reply = new CompletableFuture<>();
+        pendingRoutes.put(requestId, reply);
+        return forward(requestId, id, local.getNodeRef(), 0, 0)
+                .thenCompose(forwarded -> forwarded
+                        ? Helper.completeOnTimeout(reply, null, ROUTE_TIMEOUT_MS)
+                        : CompletableFuture.<LookupResult>completedFuture(null))
+                .thenApply(routed -> routed == null ? null
+                        : recorded(new LookupResult(routed.getOwner(), routed.getHops(), routed.getHopLatencies(), Helper.nanoTime() - start)))
+                .whenComplete((result, error) -> pendingRoutes.remove(requestId));
+    }
+
+    private static LookupResult recorded(LookupResult result) {
+        Helper.getMetrics().recordLookup(result.getHops(), result.getTotalLatency());
+        return result;
+    }
+
+    /**
+     * Handles a ROUTE received from another node: answers the origin if this node's
+     * successor owns id, otherwise passes the request on. Does not block.
+     */
+    public void route(long requestId, long id, NodeRef origin, int hops) {
+        NodeRef self = local.getNodeRef();
+        NodeRef successor = local.getSuccessor() != null ? local.getSuccessor() : self;
+        if (isBetween(id, self.getId(), successor.getId()) || hops >= MAX_HOPS) {
+            Helper.sendRequestAsync(origin, WireProtocol.encodeRouted(requestId, successor, hops, self));
+            return;
+        }
+        forward(requestId, id, origin, hops, 0).thenAccept(forwarded -> {
+            // a node that cannot forward answers with its own successor, the best guess it has
+            if (!forwarded) {
+                Helper.sendRequestAsync(origin, WireProtocol.encodeRouted(requestId, successor, hops, self));
+            }
+        });
+    }
+
+    /**
+     * Hands a ROUTED reply to the lookup waiting for it and caches the owner's range
+     * if the reply says which node found it. Replies for lookups that already gave
+     * up are dropped.
+     */
+    public void completeRoute(long requestId, NodeRef owner, int hops, NodeRef from) {
+        if (from != null) {
+            local.getLookupCache().put(from, owner);
+        }
+        CompletableFuture<LookupResult> reply = pendingRoutes.get(requestId);
+        if (reply != null) {
+            reply.complete(new LookupResult(owner, hops, new long[0], 0));
+        }
+    }
+
+    /**
+     * Passes a recursive lookup to the best available next hop: the cached
+     * predecessor of id's owner if there is one, which finds the owner in one more
+     * hop, otherwise a finger. A hop that fails is suspected by the failure
+     * detector, so the next attempt picks a different node.
+     */
+    private CompletableFuture<Boolean> forward(long requestId, long id, NodeRef origin, int hops, int attempt) {
+        List<NodeRef> candidates = new ArrayList<>(Arrays.asList(local.closestPrecedingFingers(id, CANDIDATES_PER_STEP)));
+        LookupCache.Entry cached = local.getLookupCache().get(id);
+        if (cached != null) {
+            NodeRef hint = cached.getPredecessor();
+            if (!hint.equals(local.getNodeRef()) && !candidates.contains(hint) && Helper.getFailureDetector().isAvailable(hint.getAddress())) {
+                candidates.add(0, hint);
+            }
+        }
+        if (candidates.isEmpty() || attempt >= MAX_FORWARD_ATTEMPTS) {
+            return CompletableFuture.completedFuture(false);
+        }
+        byExpectedTime(candidates, id);
+        NodeRef next = candidates.get(0);
+        return Helper.sendRequestAsync(next, WireProtocol.encodeRoute(requestId, id, origin, hops + 1))
+                .thenCompose(response -> response != null && WireProtocol.opcode(response) == WireProtocol.ACK
+                        ? CompletableFuture.completedFuture(true)
+                        : forward(requestId, id, origin, hops, attempt + 1));
+    }
+
+    private CompletableFuture<Step> step(NodeRef target, long id) {
+        long start = Helper.nanoTime();
+        return Helper.sendRequestAsync(target, WireProtocol.encode(WireProtocol.STEP, id, CANDIDATES_PER_STEP))
+                .thenApply(response -> {
+                    if (response == null || response.get() != WireProtocol.NODES) {
+                        return null;
+                    }
+                    NodeRef[] nodes = WireProtocol.getNodes(response);
+                    if (nodes.length == 0) {
+                        return null;
+                    }
+                    return new Step(target, nodes[0], Arrays.copyOfRange(nodes, 1, nodes.length), Helper.nanoTime() - start);
+                });
+    }
+
+    /**
+     * Inserts candidates into shortlist, keeping it ordered from closest behind id
+     * to furthest and free of duplicates.
+     */
+    private static void addCandidates(List<NodeRef> shortlist, NodeRef[] candidates, long id) {
+        for (NodeRef candidate : candidates) {
+            if (candidate == null || shortlist.contains(candidate)) {
+                continue;
+            }
+            long d = distance(candidate, id);
+            int i = 0;
+            while (i < shortlist.size() && distance(shortlist.get(i), id) <= d) {
+                i++;
+            }
+            shortlist.add(i, candidate);
+        }
+    }
+
+    /**
+     * Sorts candidates, all preceding id, by the expected time to reach its owner
+     * through them: the round trip to the candidate plus two typical round trips for
+     * each doubling of the distance it leaves. Leaving twice the distance usually
+     * costs one more hop; counting it double keeps hop counts where they were and
+     * only takes a detour through a clearly nearer node. Left in distance order
+     * until round trips are known.
+     */
+    private static void byExpectedTime(List<NodeRef> candidates, long id) {
+        RttEstimator rtt = Helper.getRttEstimator();
+        long typical = rtt.getTypical();
+        if (typical <= 0 || candidates.size() < 2) {
+            return;
+        }
+        candidates.sort(Comparator.comparingDouble(candidate -> {
+            long measured = rtt.get(candidate.getAddress());
+            double doublings = 64 - Long.numberOfLeadingZeros(distance(candidate, id));
+            return (measured >= 0 ? measured : typical) + 2 * typical * doublings;
+        }));
+    }
+
+    private static long distance(NodeRef node, long id) {
+        return Helper.computeRelativeId(id, node.getId());
+    }
+
+    /**
+     * True if id lies in the ring interval (from, to]. A node whose successor is
+     * itself owns the whole ring.
+     */
+    public static boolean isBetween(long id, long from, long to) {
+        long span = Helper.computeRelativeId(to, from);
+        if (span == 0) {
+            return true;
+        }
+        long offset = Helper.computeRelativeId(id, from);
+        return offset > 0 && offset <= span;
+    }
+
+    /**
+     * State of one iterative lookup. Answers are handled as they arrive, on whichever
+     * thread completes them, so all state is guarded by the lookup's own lock.
+     */
+    private final class IterativeLookup {
+
+        private final long id;
+        private final long start;
+        private final NodeRef fallback;
+        private final int parallelism = LookupEngine.this.parallelism;
+        private final List<NodeRef> shortlist = new ArrayList<>();
+        private final Set<NodeRef> queried = new HashSet<>();
+        private final Map<NodeRef, Integer> failures = new HashMap<>();
+        private final long[] latencies = new long[MAX_HOPS];
+        private final CompletableFuture<LookupResult> result = new CompletableFuture<>();
+        private int hops;
+        private int inFlight;
+        // if we run out of candidates, the best guess is the successor of the closest node that answered
+        private Step closest;
+
+        private IterativeLookup(long id, long start, NodeRef fallback) {
+            this.id = id;
+            this.start = start;
+            this.fallback = fallback;
+        }
+
+        /**
+         * Starts from the local fingers, plus hint, a node believed to precede id
+         * closely, if there is one.
+         */
+        private CompletableFuture<LookupResult> start(NodeRef hint) {
+            queried.add(local.getNodeRef());
+            addCandidates(shortlist, local.closestPrecedingFingers(id, CANDIDATES_PER_STEP), id);
+            if (hint != null) {
+                addCandidates(shortlist, new NodeRef[] {hint}, id);
+            }
+            launch();
+            return result;
+        }
+
+        /**
+         * Keeps up to parallelism requests outstanding, best candidates first, and
+         * finishes the lookup once nothing is left to ask.
+         */
+        private void launch() {
+            List<NodeRef> targets = new ArrayList<>(parallelism);
+            synchronized (this) {
+                if (result.isDone()) {
+                    return;
+                }
+                List<NodeRef> choices = new ArrayList<>(CANDIDATES_PER_STEP);
+                for (NodeRef candidate : shortlist) {
+                    if (choices.size() == CANDIDATES_PER_STEP) {
+                        break;
+                    }
+                    if (!queried.contains(candidate)) {
+                        choices.add(candidate);
+                    }
+                }
+                byExpectedTime(choices, id);
+                for (NodeRef candidate : choices) {
+                    if (inFlight + targets.size() >= parallelism) {
+                        break;
+                    }
+                    queried.add(candidate);
+                    targets.add(candidate);
+                }
+                inFlight += targets.size();
+                if (inFlight == 0) {
+                    finish(closest != null ? closest.successor : fallback);
+                    return;
+                }
+            }
+            for (NodeRef target : targets) {
+                // a hop that stalls is given up on so that its slot goes to the next candidate
+                Helper.completeOnTimeout(step(target, id), null, HOP_TIMEOUT_MS)
+                        .whenComplete((step, error) -> onStep(target, error == null ? step : null));
+            }
+        }
+
+        private void onStep(NodeRef target, Step step) {
+            synchronized (this) {
+                inFlight--;
+                if (result.isDone()) {
+                    return;
+                }
+                if (step == null && failures.merge(target, 1, Integer::sum) < MAX_STEP_ATTEMPTS) {
+                    // a lost packet should not cost the lookup its best candidate
+                    queried.remove(target);
+                }
+                if (step != null) {
+                    latencies[hops++] = step.latency;
+                    local.getLookupCache().put(step.from, step.successor);
+                    if (isBetween(id, step.from.getId(), step.successor.getId())) {
+                        finish(step.successor);
+                        return;
+                    }
+                    if (closest == null || distance(step.from, id) < distance(closest.from, id)) {
+                        closest = step;
+                    }
+                    if (hops == MAX_HOPS) {
+                        finish(closest.successor);
+                        return;
+                    }
+                    addCandidates(shortlist, step.candidates, id);
+                }
+            }
+            launch();
+        }
+
+        private void finish(NodeRef owner) {
+            result.complete(recorded(new LookupResult(owner, hops, Arrays.copyOf(latencies, hops), Helper.nanoTime() - start)));
+        }
+    }
+
+    /**
+     * State of one batch lookup over sorted, distinct ids. Each id moves on
+     * independently as answers arrive; ids that share a next hop within one answer
+     * travel on together.
+     */
+    private final class BatchLookup {
+
+        private final long[] ids;
+        private final NodeRef[] owners;
+        private final int[] hops;
+        private final AtomicInteger remaining;
+        private final CompletableFuture<NodeRef[]> result = new CompletableFuture<>();
+
+        private BatchLookup(long[] ids) {
+            this.ids = ids;
+            this.owners = new NodeRef[ids.length];
+            this.hops = new int[ids.length];
+            this.remaining = new AtomicInteger(ids.length);
+        }
+
+        private CompletableFuture<NodeRef[]> start() {
+            if (ids.length == 0) {
+                result.complete(owners);
+                return result;
+            }
+            NodeRef self = local.getNodeRef();
+            NodeRef successor = local.getSuccessor() != null ? local.getSuccessor() : self;
+            Map<NodeRef, List<Integer>> groups = new LinkedHashMap<>();
+            for (int i = 0; i < ids.length; i++) {
+                if (successor.equals(self) || isBetween(ids[i], self.getId(), successor.getId())) {
+                    complete(i, successor);
+                    continue;
+                }
+                LookupCache.Entry cached = local.getLookupCache().get(ids[i]);
+                NodeRef next = cached != null ? cached.getPredecessor() : local.closestPrecedingFinger(ids[i]);
+                // with no finger before id, our successor is the first node to ask
+                groups.computeIfAbsent(next.equals(self) ? successor : next, k -> new ArrayList<>()).add(i);
+            }
+            send(groups);
+            return result;
+        }
+
+        private void send(Map<NodeRef, List<Integer>> groups) {
+            for (Map.Entry<NodeRef, List<Integer>> group : groups.entrySet()) {
+                List<Integer> indexes = group.getValue();
+                for (int from = 0; from < indexes.size(); from += WireProtocol.MAX_STEPS_IDS) {
+                    int[] chunk = indexes.subList(from, Math.min(from + WireProtocol.MAX_STEPS_IDS, indexes.size()))
+                            .stream().mapToInt(Integer::intValue).toArray();
+                    NodeRef target = group.getKey();
+                    long[] chunkIds = new long[chunk.length];
+                    for (int k = 0; k < chunk.length; k++) {
+                        chunkIds[k] = ids[chunk[k]];
+                    }
+                    Helper.completeOnTimeout(Helper.sendRequestAsync(target, WireProtocol.encodeSteps(chunkIds, 0, chunkIds.length)), null, HOP_TIMEOUT_MS)
+                            .whenComplete((response, error) -> {
+                                try {
+                                    onSteps(target, chunk, error == null ? response : null);
+                                } catch (RuntimeException e) {
+                                    // nothing else would ever complete these indexes
+                                    result.completeExceptionally(e);
+                                }
+                            });
+                }
+            }
+        }
+
+        private void onSteps(NodeRef from, int[] indexes, ByteBuffer response) {
+            NodeRef[] nodes;
+            try {
+                nodes = response != null && response.get() == WireProtocol.NODES ? WireProtocol.getNodes(response) : null;
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                // a malformed answer counts as none
+                nodes = null;
+            }
+            if (nodes == null || nodes.length != indexes.length + 1) {
+                for (int i : indexes) {
+                    fallback(i);
+                }
+                return;
+            }
+            NodeRef successor = nodes[0];
+            local.getLookupCache().put(from, successor);
+            Map<NodeRef, List<Integer>> groups = new LinkedHashMap<>();
+            for (int k = 0; k < indexes.length; k++) {
+                int i = indexes[k];
+                if (isBetween(ids[i], from.getId(), successor.getId())) {
+                    complete(i, successor);
+                } else if (++hops[i] >= MAX_HOPS) {
+                    fallback(i);
+                } else {
+                    NodeRef next = nodes[k + 1];
+                    // a node with no finger before id passes it on to its successor
+                    groups.computeIfAbsent(next.equals(from) ? successor : next, n -> new ArrayList<>()).add(i);
+                }
+            }
+            send(groups);
+        }
+
+        private void fallback(int i) {
+            lookupAsync(ids[i]).whenComplete((found, error) ->
+                    complete(i, found != null ? found.getOwner() : local.getNodeRef()));
+        }
+
+        private void complete(int i, NodeRef owner) {
+            owners[i] = owner;
+            if (remaining.decrementAndGet() == 0) {
+                result.complete(owners);
+            }
+        }
+    }
+
+    private static final class Step {
+
+        private final NodeRef from;
+        private final NodeRef successor;
+        private final NodeRef[] candidates;
+        private final long latency;
+
+        private Step(NodeRef from, NodeRef successor, NodeRef[] candidates, long latency) {
+            this.from = from;
+            this.successor = successor;
+            this.candidates = candidates;
+            this.latency = latency;
+        }
+    }
+}
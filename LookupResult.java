@@ -0,0 +1,59 @@
+import java.util.Arrays;
+
+/**
+ * Outcome of one lookup: the node that owns the id, how many remote hops it took
+ * and, for iterative lookups, how long each of those hops waited for its answer.
+ */
+public class LookupResult {
+
+    private final NodeRef owner;
+    private final int hops;
+    private final long[] hopLatencies;
+    private final long totalLatency;
+    private final boolean cached;
+
+    public LookupResult(NodeRef owner, int hops, long[] hopLatencies, long totalLatency) {
+        this(owner, hops, hopLatencies, totalLatency, false);
+    }
+
+    public LookupResult(NodeRef owner, int hops, long[] hopLatencies, long totalLatency, boolean cached) {
+        this.owner = owner;
+        this.hops = hops;
+        this.hopLatencies = hopLatencies;
+        this.totalLatency = totalLatency;
+        this.cached = cached;
+    }
+
+    public NodeRef getOwner() {
+        return owner;
+    }
+
+    public int getHops() {
+        return hops;
+    }
+
+    /**
+     * Latency of each hop in nanoseconds, in the order the hops were made. Empty for
+     * recursive lookups, where the origin only sees the final reply.
+     */
+    public long[] getHopLatencies() {
+        return hopLatencies;
+    }
+
+    public long getTotalLatency() {
+        return totalLatency;
+    }
+
+    /**
+     * True if the owner came from the lookup cache rather than from the ring, in
+     * which case it may be out of date.
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    @Override
+    public String toString() {
+        return owner + " in " + getHops() + " hops, " + totalLatency / 1000 + " us " + Arrays.toString(hopLatencies);
+    }
+}
@@ -1,62 +1,228 @@
+	import java.io.IOException;
 	import java.net.InetSocketAddress;
+	import java.nio.ByteBuffer;
+	import java.nio.file.Path;
 	import java.text.SimpleDateFormat;
+	import java.util.ArrayList;
+	import java.util.Arrays;
+	import java.util.Collections;
+	import java.util.Comparator;
 	import java.util.Date;
-	import java.util.HashMap;
+	import java.util.HashSet;
+	import java.util.List;
+	import java.util.Set;
+	import java.util.concurrent.CompletableFuture;
+	import java.util.function.Supplier;
 
 	public class Node {
 
 		private final long localId;
-		private final InetSocketAddress localSocketAddress;
-		private InetSocketAddress predecessor;
-		private final HashMap<Integer, InetSocketAddress> fingerTable;
+		private final NodeRef localNode;
+		private NodeRef predecessor;
+		private final FingerTable fingerTable;
+		private final SuccessorList successorList;
 		private final CommunicateManager communicateManager;
 		private final NodeMaintenance nodeMaintenance;
+		private final LookupEngine lookupEngine;
+		private final DataStore dataStore;
+		private final Replicator replicator;
+		private final LookupCache lookupCache;
+		// where the routing state is saved for a restart, null if there is no data directory
+		private final Path snapshotFile;
+		private volatile KeyMigration migration;
+		private volatile boolean joined;
 
 		public Node(InetSocketAddress address) {
-			localSocketAddress = address;
-			localId = Helper.hashSocketAddress(localSocketAddress);
-			fingerTable = initializeFingerTable();
+			this(address, SuccessorList.DEFAULT_SIZE);
+		}
+
+		public Node(InetSocketAddress address, int successorListSize) {
+			this(new NodeRef(address), new CommunicateManager(address, 10), successorListSize);
+		}
+
+		private Node(NodeRef self, CommunicateManager communicateManager, int successorListSize) {
+			localNode = self;
+			localId = localNode.getId();
+			fingerTable = new FingerTable(localId);
+			successorList = new SuccessorList(localNode, successorListSize);
 			predecessor = null;
-			communicateManager = new CommunicateManager(this, 10);
+			this.communicateManager = communicateManager;
 			nodeMaintenance = new NodeMaintenance(this);
+			lookupEngine = new LookupEngine(this);
+			Path dataDirectory = Helper.getDataDirectory();
+			dataStore = dataDirectory != null ? new DataStore(dataDirectory.resolve(Helper.longTo8DigitHex(localId))) : new DataStore();
+			snapshotFile = dataDirectory != null ? dataDirectory.resolve(Helper.longTo8DigitHex(localId)).resolve(RoutingSnapshot.FILE_NAME) : null;
+			replicator = new Replicator(this);
+			lookupCache = new LookupCache();
+			communicateManager.register(this);
 		}
 
-		private HashMap<Integer, InetSocketAddress> initializeFingerTable() {
-			int initialCapacity = 32;
-			HashMap<Integer, InetSocketAddress> newFingerTable = new HashMap<>(initialCapacity);
-			for (int i = 1; i <= initialCapacity; i++) {
-				newFingerTable.put(i, null);
+		/**
+		 * Creates count virtual nodes for one process at address. They take count
+		 * places on the ring, which evens out how much of the key space each process
+		 * owns, but share one listener and one client transport. Each one still has
+		 * to join; the ones after the first can use address itself as the contact.
+		 */
+		public static List<Node> createVirtualNodes(InetSocketAddress address, int count) {
+			CommunicateManager shared = new CommunicateManager(address, 10);
+			List<Node> nodes = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				nodes.add(new Node(new NodeRef(address, Helper.hashSocketAddress(address, i)), shared, SuccessorList.DEFAULT_SIZE));
 			}
-			return newFingerTable;
+			return nodes;
 		}
 
 		public boolean join(InetSocketAddress contact) {
+			return joinAsync(contact).join();
+		}
+
+		/**
+		 * Joins the ring through contact without blocking the calling thread, which a
+		 * simulated transport needs since it delivers messages on that same thread.
+		 */
+		public CompletableFuture<Boolean> joinAsync(InetSocketAddress contact) {
 			if (contact == null) {
 				System.out.println("Contact address is null. Join operation cannot proceed.");
-				return false;
+				return CompletableFuture.completedFuture(false);
 			}
 			System.out.println("Attempting to join. Contact address: " + contact);
-			if (!contact.equals(localSocketAddress)) {
-				InetSocketAddress successor = Helper.requestAddress(contact, "FINDSUCC_" + localId);
-				if (successor == null) {
+			// reachable before the ring learns about us, as the successor answers our notify
+			communicateManager.startListening();
+			boolean throughContact = !contact.equals(localNode.getAddress());
+			CompletableFuture<NodeRef> successor = CompletableFuture.completedFuture(null);
+			if (throughContact) {
+				successor = Helper.requestNodeAsync(new NodeRef(contact), WireProtocol.encode(WireProtocol.FINDSUCC, localId));
+			} else {
+				// a virtual node joins through a sibling that is already on the ring
+				for (Node sibling : communicateManager.getNodes()) {
+					if (sibling != this && sibling.joined) {
+						successor = sibling.lookupAsync(localId).thenApply(LookupResult::getOwner);
+						break;
+					}
+				}
+			}
+			return successor.thenCompose(found -> {
+				if (found == null && throughContact) {
 					System.out.println("Unable to find the successor for the provided address.");
-					return false;
+					return CompletableFuture.completedFuture(false);
 				}
-				updateSingleFinger(1, successor);
+				CompletableFuture<Void> seeded = CompletableFuture.completedFuture(null);
+				if (found != null && !found.equals(localNode)) {
+					updateSingleFinger(1, found);
+					seeded = seedFromSuccessor(found, Collections.emptyList());
+				}
+				return seeded.thenApply(v -> {
+					ThreadsRun();
+					joined = true;
+					return true;
+				});
+			});
+		}
+
+		/**
+		 * Rejoins the ring through the peers in this node's routing snapshot, falling
+		 * back to a plain join through contact if there is no snapshot or none of its
+		 * peers answers.
+		 */
+		public boolean rejoin(InetSocketAddress contact) {
+			return rejoinAsync(contact).join();
+		}
+
+		/**
+		 * Probes every peer of the saved snapshot at once and takes the closest live
+		 * one after this node as its successor, restores the predecessor if it is
+		 * still alive and seeds the fingers from all live peers plus the successor's
+		 * table. A node restarted within a short while then routes correctly from
+		 * the start, and maintenance only has to confirm what it already has.
+		 */
+		public CompletableFuture<Boolean> rejoinAsync(InetSocketAddress contact) {
+			RoutingSnapshot snapshot = snapshotFile != null ? RoutingSnapshot.load(snapshotFile) : null;
+			List<NodeRef> peers = snapshot != null ? snapshot.getPeers() : new ArrayList<>();
+			peers.removeIf(peer -> peer.equals(localNode));
+			if (peers.isEmpty()) {
+				return joinAsync(contact);
 			}
-			ThreadsRun();
-			return true;
+			System.out.println("Rejoining through " + peers.size() + " known peers");
+			communicateManager.startListening();
+			List<CompletableFuture<NodeRef>> probes = new ArrayList<>(peers.size());
+			for (NodeRef peer : peers) {
+				probes.add(Helper.sendRequestAsync(peer, WireProtocol.encode(WireProtocol.KEEP)).thenApply(response -> response != null ? peer : null));
+			}
+			return CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0])).thenCompose(v -> {
+				List<NodeRef> live = new ArrayList<>();
+				for (CompletableFuture<NodeRef> probe : probes) {
+					NodeRef peer = probe.join();
+					if (peer != null) {
+						live.add(peer);
+					}
+				}
+				if (live.isEmpty()) {
+					System.out.println("No known peer answered.");
+					return joinAsync(contact);
+				}
+				live.sort(Comparator.comparingLong(node -> Helper.computeRelativeId(node.getId(), localId)));
+				NodeRef successor = live.get(0);
+				if (live.contains(snapshot.getPredecessor())) {
+					setPredecessor(snapshot.getPredecessor());
+				}
+				successorList.refresh(successor, live.subList(1, live.size()).toArray(new NodeRef[0]));
+				updateSingleFinger(1, successor);
+				return seedFromSuccessor(successor, live).thenApply(seeded -> {
+					ThreadsRun();
+					joined = true;
+					return true;
+				});
+			});
+		}
+
+		/**
+		 * Fills the finger table and successor list of a node that has just found its
+		 * successor from the successor's own, in one FINGERS request, and from the
+		 * other nodes in alsoKnown. Each finger gets the first known node at or past
+		 * its start. That node may lie past the true owner, which only costs a hop,
+		 * until maintenance refreshes the fingers in order and finds the nodes it does
+		 * not know yet.
+		 */
+		private CompletableFuture<Void> seedFromSuccessor(NodeRef successor, List<NodeRef> alsoKnown) {
+			return Helper.sendRequestAsync(successor, WireProtocol.encode(WireProtocol.FINGERS)).thenAccept(response -> {
+				List<NodeRef> known = new ArrayList<>(alsoKnown);
+				known.add(successor);
+				if (response != null && response.get() == WireProtocol.TABLE) {
+					NodeRef[] successors = WireProtocol.getNodes(response);
+					NodeRef[] fingers = WireProtocol.getNodes(response);
+					successorList.refresh(successor, successors);
+					for (int i = 1; i < successors.length; i++) {
+						lookupCache.put(successors[i - 1], successors[i]);
+					}
+					known.addAll(Arrays.asList(successors));
+					known.addAll(Arrays.asList(fingers));
+				}
+				known.removeIf(node -> node.equals(localNode));
+				known.sort(Comparator.comparingLong(node -> Helper.computeRelativeId(node.getId(), localId)));
+				int next = 0;
+				for (int i = 2; i <= FingerTable.SIZE; i++) {
+					long start = 1L << (i - 1);
+					while (next < known.size() && Helper.computeRelativeId(known.get(next).getId(), localId) < start) {
+						next++;
+					}
+					if (next == known.size()) {
+						// past every node we know of; left for maintenance to find
+						break;
+					}
+					fingerTable.set(i, known.get(next));
+				}
+			});
 		}
 		
 		private void ThreadsRun() {
 			if (communicateManager != null) {
-				communicateManager.start();
+				communicateManager.startListening();
 			}
 			if (nodeMaintenance != null) {
-				nodeMaintenance.start();
+				Helper.getTransport().runMaintenance(nodeMaintenance);
 			}
 		}
-		public void processNodeNotification(InetSocketAddress otherNode, String notificationType) {
+		public void processNodeNotification(NodeRef otherNode, String notificationType) {
 			if (otherNode == null) {
 				System.out.println("The provided node address is null.");
 				return;
@@ -68,130 +234,349 @@
 			}
 		
 			if ("notify".equalsIgnoreCase(notificationType)) {
-				if (!otherNode.equals(localSocketAddress)) {
-					Helper.sendRequest(otherNode, "PREFOUND_" + localSocketAddress.getAddress().toString() + ":" + localSocketAddress.getPort());
+				if (!otherNode.equals(localNode)) {
+					Helper.sendRequestAsync(otherNode, WireProtocol.encode(WireProtocol.PREFOUND, localNode));
 				}
 			} else if ("notified".equalsIgnoreCase(notificationType)) {
-				long oldPreId = predecessor != null ? Helper.hashSocketAddress(predecessor) : -1;
-				if (predecessor == null || predecessor.equals(localSocketAddress) || isPredecessorUpdateRequired(otherNode, oldPreId)) {
+				long oldPreId = predecessor != null ? predecessor.getId() : -1;
+				if (predecessor == null || predecessor.equals(localNode) || isPredecessorUpdateRequired(otherNode, oldPreId)) {
 					setPredecessor(otherNode);
+					if (!otherNode.equals(localNode)) {
+						// everything in (localId, newPre] now belongs to the new predecessor; with
+						// replication this node stays a replica of it, so the keys are only copied
+						migrateKeys(new KeyMigration(dataStore, otherNode, localId, otherNode.getId(), replicator.getFactor() == 1));
+					}
 				}
 			} else {
 				System.out.println("Invalid notification type provided: " + notificationType);
 			}
 		}
 		
-		private boolean isPredecessorUpdateRequired(InetSocketAddress newPre, long oldPreId) {
+		private synchronized void migrateKeys(KeyMigration next) {
+			if (migration != null) {
+				migration.cancel();
+			}
+			migration = next;
+			next.run();
+		}
+
+		/**
+		 * Restarts a key migration that stopped on a failed batch, as long as its
+		 * target is still the predecessor.
+		 */
+		public void resumeMigration() {
+			KeyMigration current = migration;
+			if (current != null && !current.isFinished() && current.getTarget().equals(predecessor)) {
+				current.run();
+			}
+		}
+
+		/**
+		 * Pushes every key this node holds to its successor, so that leaving the ring
+		 * loses no data. Returns false if some keys could not be handed over.
+		 */
+		public boolean handOffKeys() {
+			NodeRef successor = getSuccessor();
+			// skip virtual nodes of this process that have already left
+			for (int i = 0; successor != null && isLeftSibling(successor); i++) {
+				NodeRef[] successors = successorList.toArray();
+				successor = i < successors.length ? successors[i] : null;
+			}
+			if (dataStore.size() == 0 || successor == null || successor.equals(localNode)) {
+				return true;
+			}
+			System.out.println("Handing " + dataStore.size() + " keys over to " + successor);
+			KeyMigration handOff = new KeyMigration(dataStore, successor, localId, localId);
+			migrateKeys(handOff);
+			if (!handOff.run().join()) {
+				System.out.println("Unable to hand over " + dataStore.size() + " keys to the successor.");
+				return false;
+			}
+			return true;
+		}
+
+		private boolean isLeftSibling(NodeRef node) {
+			return node.getAddress().equals(localNode.getAddress()) && !communicateManager.serves(node.getId());
+		}
+
+		private boolean isPredecessorUpdateRequired(NodeRef newPre, long oldPreId) {
 			long localRelativeId = Helper.computeRelativeId(localId, oldPreId);
-			long newPreRelativeId = Helper.computeRelativeId(Helper.hashSocketAddress(newPre), oldPreId);
+			long newPreRelativeId = Helper.computeRelativeId(newPre.getId(), oldPreId);
 			return newPreRelativeId > 0 && newPreRelativeId < localRelativeId;
 		}
 
 
-		public InetSocketAddress searchSuccessor(long id) {
-			InetSocketAddress ret = this.getSuccessor();
-			InetSocketAddress pre = findPredecessor(id);
-			if (!pre.equals(localSocketAddress))
-				ret = Helper.requestAddress(pre, "YOURSUCC");
-			if (ret == null)
-				ret = localSocketAddress;
-			return ret;
+		public LookupResult lookup(long id) {
+			return startLookup(id).join();
+		}
+
+		/**
+		 * Resolves the owner of id, with the hop count and latencies, without blocking
+		 * the calling thread.
+		 */
+		public CompletableFuture<LookupResult> lookupAsync(long id) {
+			return startLookup(id);
+		}
+
+		/**
+		 * Resolves the owners of many ids at once, in the order given, sharing one
+		 * request per next hop between ids that route through the same node.
+		 */
+		public NodeRef[] lookupBatch(long[] ids) {
+			return lookupEngine.lookupBatch(ids);
 		}
 
+		public CompletableFuture<NodeRef[]> lookupBatchAsync(long[] ids) {
+			return lookupEngine.lookupBatchAsync(ids);
+		}
 
-		private InetSocketAddress findPredecessor(long targetId) {
-			InetSocketAddress currentNode = this.localSocketAddress;
-			InetSocketAddress currentNodeSuccessor = this.getSuccessor();
-			InetSocketAddress targetNode = this.localSocketAddress;
-			long targetNodeId = computeNodeId(currentNode, currentNodeSuccessor);
-			long findidRelativeId = Helper.computeRelativeId(targetId, Helper.hashSocketAddress(currentNode));
-		
-			while (!(findidRelativeId > 0 && findidRelativeId <= targetNodeId)) {
-				InetSocketAddress previousNode = currentNode;
-				currentNode = updateCurrentNode(currentNode, targetId, targetNode);
-				if (previousNode.equals(currentNode)) break;
-		
-				currentNodeSuccessor = Helper.requestAddress(currentNode, "YOURSUCC");
-				targetNodeId = computeNodeId(currentNode, currentNodeSuccessor);
-				findidRelativeId = Helper.computeRelativeId(targetId, Helper.hashSocketAddress(currentNode));
-			}
-		
-			return currentNode;
+		public void setLookupMode(LookupEngine.Mode mode) {
+			lookupEngine.setMode(mode);
 		}
-		
-		private long computeNodeId(InetSocketAddress currentNode, InetSocketAddress currentNodeSuccessor) {
-			if (currentNodeSuccessor != null) {
-				return Helper.computeRelativeId(Helper.hashSocketAddress(currentNodeSuccessor), Helper.hashSocketAddress(currentNode));
-			}
-			return 0;
+
+		public void routeLookup(long requestId, long id, NodeRef origin, int hops) {
+			lookupEngine.route(requestId, id, origin, hops);
 		}
-		
-		private InetSocketAddress updateCurrentNode(InetSocketAddress currentNode, long findid, InetSocketAddress targetNode) {
-			if (currentNode.equals(this.localSocketAddress)) {
-				return this.closestPrecedingFinger(findid);
-			} else {
-				InetSocketAddress result = Helper.requestAddress(currentNode, "CLOSEST_" + findid);
-				if (result == null || result.equals(currentNode)) {
-					return targetNode;
-				} else {
-					return result;
+
+		public void completeRoutedLookup(long requestId, NodeRef owner, int hops, NodeRef from) {
+			lookupEngine.completeRoute(requestId, owner, hops, from);
+		}
+
+		public boolean put(byte[] key, byte[] value) {
+			return putAsync(key, value).join();
+		}
+
+		public byte[] get(byte[] key) {
+			return getAsync(key).join();
+		}
+
+		public boolean delete(byte[] key) {
+			return deleteAsync(key).join();
+		}
+
+		/**
+		 * Stores value under key on the node that owns the key's id and its replicas.
+		 * Completes with false if the copies required by the consistency level could
+		 * not be written.
+		 */
+		public CompletableFuture<Boolean> putAsync(byte[] key, byte[] value) {
+			Replicator.Consistency level = replicator.getConsistency();
+			return writeToOwner(key, WireProtocol.encodeKeyValue(WireProtocol.PUT, key, value, level.ordinal()),
+					() -> replicator.write(key, value, level), true);
+		}
+
+		/**
+		 * Completes with the value stored under key, or null if there is none or the
+		 * owner could not be reached. Any replica of the key may answer.
+		 */
+		public CompletableFuture<byte[]> getAsync(byte[] key) {
+			return startLookup(Helper.hashBytes(key)).thenCompose(route -> replicator.read(route.getOwner(), key));
+		}
+
+		/**
+		 * Completes with true if key existed and was removed from the copies required
+		 * by the consistency level.
+		 */
+		public CompletableFuture<Boolean> deleteAsync(byte[] key) {
+			Replicator.Consistency level = replicator.getConsistency();
+			return writeToOwner(key, WireProtocol.encodeKeyValue(WireProtocol.DELETE, key, null, level.ordinal()),
+					() -> replicator.write(key, null, level), true);
+		}
+
+		/**
+		 * Sends a write to the owner of key, or applies it here if this node is the
+		 * owner. The owner may come straight from the lookup cache; if it answers
+		 * NOT_OWNER it is dropped from the cache and the write is retried once after
+		 * a lookup on the ring.
+		 */
+		private CompletableFuture<Boolean> writeToOwner(byte[] key, ByteBuffer request, Supplier<CompletableFuture<Boolean>> localWrite, boolean trustCache) {
+			return startLookup(Helper.hashBytes(key), trustCache).thenCompose(route -> {
+				NodeRef owner = route.getOwner();
+				if (owner.equals(localNode)) {
+					return localWrite.get();
 				}
+				return Helper.sendRequestAsync(owner, request).thenCompose(response -> {
+					if (response != null && WireProtocol.opcode(response) == WireProtocol.NOT_OWNER && trustCache) {
+						invalidateCachedOwner(owner);
+						return writeToOwner(key, request, localWrite, false);
+					}
+					return CompletableFuture.completedFuture(response != null && WireProtocol.opcode(response) == WireProtocol.ACK);
+				});
+			});
+		}
+
+		private void invalidateCachedOwner(NodeRef owner) {
+			for (Node sibling : communicateManager.getNodes()) {
+				sibling.lookupCache.invalidate(owner);
 			}
 		}
 
-	public InetSocketAddress closestPrecedingFinger(long findId) {
-			long findIdRelative = Helper.computeRelativeId(findId, localId);
+		/**
+		 * True if id falls in (predecessor, this node]. Without a known predecessor
+		 * every id is accepted.
+		 */
+		public boolean owns(long id) {
+			NodeRef pre = predecessor;
+			return pre == null || LookupEngine.isBetween(id, pre.getId(), localId);
+		}
 
-			for (int i = 32; i > 0; i--) {
-				InetSocketAddress finger = getValidFinger(i, findIdRelative);
-				if (finger != null) {
-					return finger;
+		/**
+		 * Applies a write received as the owner of key, null value meaning delete.
+		 */
+		public CompletableFuture<Boolean> storeAsOwner(byte[] key, byte[] value, Replicator.Consistency level) {
+			return replicator.write(key, value, level);
+		}
+
+		/**
+		 * Sets how many nodes hold each key and how many of them must confirm a write
+		 * before it is acknowledged.
+		 */
+		public void setReplication(int factor, Replicator.Consistency consistency) {
+			replicator.setFactor(factor);
+			replicator.setConsistency(consistency);
+		}
+
+		public Replicator getReplicator() {
+			return replicator;
+		}
+
+		/**
+		 * Runs a lookup from whichever virtual node of this process lies closest
+		 * before id, since its successor and fingers are the nearest to it.
+		 */
+		private CompletableFuture<LookupResult> startLookup(long id) {
+			return startLookup(id, false);
+		}
+
+		private CompletableFuture<LookupResult> startLookup(long id, boolean trustCache) {
+			Node start = this;
+			long best = Helper.computeRelativeId(id, localId);
+			for (Node sibling : communicateManager.getNodes()) {
+				long distance = Helper.computeRelativeId(id, sibling.localId);
+				if (sibling.joined && distance < best) {
+					start = sibling;
+					best = distance;
 				}
 			}
-			return localSocketAddress;
+			return start.lookupEngine.lookupAsync(id, trustCache);
 		}
 
-		private InetSocketAddress getValidFinger(int index, long findIdRelative) {
-			InetSocketAddress finger = fingerTable.get(index);
-			if (finger == null) return null;
+		public LookupCache getLookupCache() {
+			return lookupCache;
+		}
 
-			long fingerId = Helper.hashSocketAddress(finger);
-			long fingerRelativeId = Helper.computeRelativeId(fingerId, localId);
+		public DataStore getDataStore() {
+			return dataStore;
+		}
 
-			if (isFingerValid(fingerRelativeId, findIdRelative)) {
-				return checkFingerAlive(finger) ? finger : null;
-			}
-			return null;
+		/**
+		 * Sets how many candidate next hops each lookup step queries in parallel.
+		 */
+		public void setLookupParallelism(int parallelism) {
+			lookupEngine.setParallelism(parallelism);
 		}
 
-		private boolean isFingerValid(long fingerRelativeId, long findIdRelative) {
-			return fingerRelativeId > 0 && fingerRelativeId < findIdRelative;
+	public NodeRef closestPrecedingFinger(long findId) {
+			NodeRef finger = fingerTable.closestPreceding(findId, Helper.getFailureDetector());
+			return finger != null ? finger : localNode;
 		}
 
-		private boolean checkFingerAlive(InetSocketAddress finger) {
-			String response = Helper.sendRequest(finger, "KEEP");
-			if (response != null && response.equals("ALIVE")) {
-				return true;
-			} else {
-				deleteCertainFinger(finger);
-				return false;
+		public NodeRef[] closestPrecedingFingers(long findId, int count) {
+			NodeRef[] fingers = new NodeRef[count];
+			int found = fingerTable.closestPreceding(findId, Helper.getFailureDetector(), fingers);
+			return found == count ? fingers : Arrays.copyOf(fingers, found);
+		}
+
+		/**
+		 * Re-probes fingers that recent requests failed to reach and drops the ones
+		 * that are now considered dead. Called from maintenance, never while routing.
+		 * Completes with the number of probes sent.
+		 */
+		public CompletableFuture<Integer> verifyFingers() {
+			FailureDetector detector = Helper.getFailureDetector();
+			Set<NodeRef> checked = new HashSet<>();
+			List<CompletableFuture<Void>> probes = new ArrayList<>();
+			int sent = 0;
+			for (int i = 1; i <= FingerTable.SIZE; i++) {
+				NodeRef finger = fingerTable.get(i);
+				if (finger == null || finger.equals(localNode) || !checked.add(finger)) {
+					continue;
+				}
+				// dead peers are probed too, since fix-fingers only re-adds one if the ring still routes to it
+				CompletableFuture<ByteBuffer> probe = CompletableFuture.completedFuture(null);
+				if (detector.getState(finger.getAddress()) != FailureDetector.State.ALIVE) {
+					probe = Helper.sendRequestAsync(finger, WireProtocol.encode(WireProtocol.KEEP));
+					sent++;
+				}
+				probes.add(probe.thenRun(() -> {
+					// a dead successor is left to stabilization, which replaces it from the successor list
+					if (detector.getState(finger.getAddress()) == FailureDetector.State.DEAD && !finger.equals(getSuccessor())) {
+						deleteCertainFinger(finger);
+					}
+				}));
 			}
+			int probed = sent;
+			return CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0])).thenApply(v -> probed);
 		}
 
 
-		public void updateSingleFinger(int i, InetSocketAddress value) {
-			fingerTable.put(i, value);
-			if (i == 1 && value != null && !value.equals(localSocketAddress)) {
+		public void updateSingleFinger(int i, NodeRef value) {
+			fingerTable.set(i, value);
+			if (i == 1 && value != null && !value.equals(localNode)) {
 				processNodeNotification(value,"NOTIFY");
 			}
 		}
 
 
-		public void deleteSuccessor() {
-			InetSocketAddress successor = getSuccessor();
-			if (successor == null) return;
+		/**
+		 * Pulls the successor's own successor list in one request and rebuilds ours
+		 * from it. Completes with false if the successor did not answer.
+		 */
+		public CompletableFuture<Boolean> refreshSuccessorList() {
+			NodeRef successor = getSuccessor();
+			if (successor == null || successor.equals(localNode)) {
+				return CompletableFuture.completedFuture(true);
+			}
+			return Helper.sendRequestAsync(successor, WireProtocol.encode(WireProtocol.SUCCESSORS)).thenApply(response -> {
+				if (response == null || response.get() != WireProtocol.NODES) {
+					return false;
+				}
+				successorList.refresh(successor, WireProtocol.getNodes(response));
+				// each entry owns the range up from the one before it
+				NodeRef[] successors = successorList.toArray();
+				for (int i = 1; i < successors.length; i++) {
+					lookupCache.put(successors[i - 1], successors[i]);
+				}
+				return true;
+			});
+		}
+
+		public NodeRef[] getSuccessorList() {
+			return successorList.toArray();
+		}
+
+		public int getSuccessorListCapacity() {
+			return successorList.capacity();
+		}
+
+		public CompletableFuture<Void> deleteSuccessor() {
+			NodeRef successor = getSuccessor();
+			if (successor == null) return CompletableFuture.completedFuture(null);
 		
 			int breakIndex = findBreakIndex(successor);
+			successorList.remove(successor);
+			NodeRef next = successorList.firstAvailable(Helper.getFailureDetector());
+			if (next != null && !next.equals(localNode)) {
+				// the next live successor is also the successor of every start the dead one covered
+				for (int j = breakIndex; j >= 2; j--) {
+					fingerTable.set(j, next);
+				}
+				updateSingleFinger(1, next);
+				if (predecessor != null && predecessor.equals(successor)) {
+					setPredecessor(null);
+				}
+				return CompletableFuture.completedFuture(null);
+			}
 			for (int j = breakIndex; j >= 1; j--) {
 				updateSingleFinger(j, null);
 			}
@@ -199,53 +584,44 @@
 				setPredecessor(null);
 			}
 			fillSuccessor();
-			successor = getSuccessor();
-			if ((successor == null || successor.equals(successor)) &&
-				predecessor != null && !predecessor.equals(localSocketAddress)) {
-				InetSocketAddress newFirstFinger = getFirstFinger(successor);
-				updateSingleFinger(1, newFirstFinger);
+			NodeRef filled = getSuccessor();
+			if ((filled == null || filled.equals(filled)) &&
+				predecessor != null && !predecessor.equals(localNode)) {
+				return getFirstFinger(predecessor, filled).thenAccept(newFirstFinger -> updateSingleFinger(1, newFirstFinger));
 			}
+			return CompletableFuture.completedFuture(null);
 		}
 		
-		private int findBreakIndex(InetSocketAddress successor) {
-			for (int i = 32; i > 0; i--) {
-				InetSocketAddress ithFinger = fingerTable.get(i);
-				if (ithFinger != null && ithFinger.equals(successor)) {
-					return i;
-				}
-			}
-			return 32;
+		private int findBreakIndex(NodeRef successor) {
+			int i = fingerTable.lastIndexOf(successor);
+			return i > 0 ? i : FingerTable.SIZE;
 		}
 		
 		
-		private InetSocketAddress getFirstFinger(InetSocketAddress successor) {
-			InetSocketAddress p = predecessor;
-			InetSocketAddress pre;
-			while (true) {
-				pre = Helper.requestAddress(p, "FINDPRE");
-				if (pre == null || pre.equals(p) || pre.equals(localSocketAddress) || pre.equals(successor)) {
-					break;
+		/**
+		 * Walks predecessors back from p for as long as they lead somewhere new and
+		 * completes with the last one reached.
+		 */
+		private CompletableFuture<NodeRef> getFirstFinger(NodeRef p, NodeRef successor) {
+			return Helper.requestNodeAsync(p, WireProtocol.encode(WireProtocol.FINDPRE)).thenCompose(pre -> {
+				if (pre == null || pre.equals(p) || pre.equals(localNode) || pre.equals(successor)) {
+					return CompletableFuture.completedFuture(p);
 				}
-				p = pre;
-			}
-			return p;
+				return getFirstFinger(pre, successor);
+			});
 		}
 		
-		private void deleteCertainFinger(InetSocketAddress f) {
-			for (int i = 32; i > 0; i--) {
-				InetSocketAddress ithfinger = fingerTable.get(i);
-				if (ithfinger != null && ithfinger.equals(f))
-					fingerTable.put(i, null);
-			}
+		private void deleteCertainFinger(NodeRef f) {
+			fingerTable.remove(f);
 		}
 
 	// need to fix~
 		public void fillSuccessor() {
-			InetSocketAddress successor = this.getSuccessor();
-			if (successor == null || successor.equals(localSocketAddress)) {
+			NodeRef successor = this.getSuccessor();
+			if (successor == null || successor.equals(localNode)) {
 				for (int i = 2; i <= 32; i++) {
-					InetSocketAddress ithfinger = fingerTable.get(i);
-					if (ithfinger!=null && !ithfinger.equals(localSocketAddress)) {
+					NodeRef ithfinger = fingerTable.get(i);
+					if (ithfinger!=null && !ithfinger.equals(localNode)) {
 						for (int j = i-1; j >=1; j--) {
 							updateSingleFinger(j, ithfinger);
 						}
@@ -254,7 +630,7 @@
 				}
 			}
 			successor = getSuccessor();
-			if ((successor == null || successor.equals(localSocketAddress)) && predecessor!=null && !predecessor.equals(localSocketAddress)) {
+			if ((successor == null || successor.equals(localNode)) && predecessor!=null && !predecessor.equals(localNode)) {
 				updateSingleFinger(1, predecessor);
 			}
 
@@ -264,43 +640,49 @@
 		public void clearPredecessor () {
 			setPredecessor(null);
 		}
-		private synchronized void setPredecessor(InetSocketAddress pre) {
+		private synchronized void setPredecessor(NodeRef pre) {
 			predecessor = pre;
 		}
 		public long getId() {
 			return localId;
 		}
 		public InetSocketAddress getAddress() {
-			return localSocketAddress;
+			return localNode.getAddress();
 		}
-		public InetSocketAddress getPredecessor() {
+		public NodeRef getNodeRef() {
+			return localNode;
+		}
+		public NodeRef getPredecessor() {
 			return predecessor;
 		}
-		public InetSocketAddress getSuccessor() {
-			if (fingerTable != null && fingerTable.size() > 0) {
-				return fingerTable.get(1);
-			}
-			return null;
+		public NodeRef getSuccessor() {
+			return fingerTable.get(1);
+		}
+		public NodeRef getFinger(int i) {
+			return fingerTable.get(i);
+		}
+		public long getFingerVersion() {
+			return fingerTable.getVersion();
 		}
 
 	public void printNeighbors() {
 		System.out.println("\n--- Node Neighbors [" + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + "] ---");
 		System.out.println(String.format("%-15s %-30s %-20s", "Neighbor", "Address", "Position"));
 
-		InetSocketAddress successor = fingerTable.get(1);
+		NodeRef successor = fingerTable.get(1);
 		String predecessorInfo, successorInfo;
 
 		try {
-			if (predecessor == null || predecessor.equals(localSocketAddress)) {
+			if (predecessor == null || predecessor.equals(localNode)) {
 				predecessorInfo = "Self";
 			} else {
-				predecessorInfo = String.format("%s:%d, %s", predecessor.getAddress().getHostAddress(), predecessor.getPort(), Helper.hexIdAndPosition(predecessor));
+				predecessorInfo = String.format("%s:%d, %s", predecessor.getAddress().getAddress().getHostAddress(), predecessor.getAddress().getPort(), Helper.hexIdAndPosition(predecessor));
 			}
 
-			if (successor == null || successor.equals(localSocketAddress)) {
+			if (successor == null || successor.equals(localNode)) {
 				successorInfo = "Self";
 			} else {
-				successorInfo = String.format("%s:%d, %s", successor.getAddress().getHostAddress(), successor.getPort(), Helper.hexIdAndPosition(successor));
+				successorInfo = String.format("%s:%d, %s", successor.getAddress().getAddress().getHostAddress(), successor.getAddress().getPort(), Helper.hexIdAndPosition(successor));
 			}
 		} catch (Exception e) {
 			System.out.println("Error in retrieving predecessor/successor info: " + e.getMessage());
@@ -315,7 +697,7 @@
 		public void printDataStructure() {
 			System.out.println("\n================= Node Data Structure [" + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + "] =================");
 			try {
-				System.out.println("LOCAL: " + localSocketAddress.toString() + "\t" + Helper.hexIdAndPosition(localSocketAddress));
+				System.out.println("LOCAL: " + localNode.toString() + "\t" + Helper.hexIdAndPosition(localNode));
 		
 				String predecessorInfo = (predecessor != null) ? predecessor.toString() + "\t" + Helper.hexIdAndPosition(predecessor) : "NULL";
 				System.out.println("PREDECESSOR: " + predecessorInfo);
@@ -323,8 +705,8 @@
 				System.out.println("\n--- Finger Table ---");
 				System.out.println(String.format("%-5s %-20s %-30s %-20s", "Index", "Start", "Node Address", "Position"));
 				for (int i = 1; i <= 32; i++) {
-				long ithStart = Helper.calculateNodePosition(Helper.hashSocketAddress(localSocketAddress), i);
-				InetSocketAddress finger = fingerTable.get(i);
+				long ithStart = Helper.calculateNodePosition(localId, i);
+				NodeRef finger = fingerTable.get(i);
 				String fingerInfo, position;
 		
 				if (finger != null) {
@@ -337,16 +719,50 @@
 		
 				System.out.println(String.format("%-5d %-20s %-30s %-20s", i, Helper.longTo8DigitHex(ithStart), fingerInfo, position));
 			}
+
+				System.out.println("\n--- Successor List ---");
+				NodeRef[] successors = successorList.toArray();
+				for (int i = 0; i < successors.length; i++) {
+					System.out.println(String.format("%-5d %-30s %-20s", i + 1, successors[i], Helper.hexIdAndPosition(successors[i])));
+				}
 		}	catch (Exception e) {
 				System.out.println("Error in printing data structure: " + e.getMessage());
 			}
 			System.out.println("\n========================================================\n");
 		}
 		
+		/**
+		 * Saves the predecessor, successor list and distinct fingers for
+		 * {@link #rejoin}. Does nothing without a data directory.
+		 */
+		public void saveRoutingSnapshot() {
+			if (snapshotFile == null || !joined) {
+				return;
+			}
+			NodeRef[] fingers = new NodeRef[FingerTable.SIZE];
+			int count = 0;
+			for (int i = 1; i <= FingerTable.SIZE; i++) {
+				NodeRef finger = fingerTable.get(i);
+				if (finger != null && (count == 0 || !finger.equals(fingers[count - 1]))) {
+					fingers[count++] = finger;
+				}
+			}
+			try {
+				new RoutingSnapshot(predecessor, successorList.toArray(), Arrays.copyOf(fingers, count)).save(snapshotFile);
+			} catch (IOException e) {
+				System.err.println("Unable to save routing snapshot: " + e.getMessage());
+			}
+		}
+
 		public void stopAllThreads() {
-			if (communicateManager != null)
+			// a restart soon after can rejoin through the same peers
+			saveRoutingSnapshot();
+			handOffKeys();
+			joined = false;
+			if (communicateManager != null && communicateManager.unregister(this) == 0)
 				communicateManager.toDie();
 			if (nodeMaintenance != null)
 				nodeMaintenance.toDie();
+			dataStore.close();
 		}
 	}
@@ -1,73 +1,394 @@
-import java.net.InetSocketAddress;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Keeps a node's predecessor, successors and fingers up to date in periodic rounds.
+ *
+ * The period adapts to the ring: a round that sees the routing state change, or a
+ * request fail, brings the next round forward to {@link #MIN_PERIOD_MS}, and every
+ * quiet round doubles the wait up to {@link #MAX_PERIOD_MS}, so a stable ring
+ * costs few requests and churn is repaired quickly.
+ *
+ * A finger may be any node between its start and the next finger's start, and
+ * where there is a choice it is the one with the lowest measured round trip time.
+ *
+ * When the routing state has changed, it is saved for a warm restart at most
+ * every {@link #SNAPSHOT_INTERVAL_MS}, see {@link Node#rejoin}.
+ */
 public class NodeMaintenance extends Thread {
 
+    public static final long MIN_PERIOD_MS = 500;
+    public static final long MAX_PERIOD_MS = 4000;
+    // a round stops waiting for its requests after this long
+    private static final long ROUND_TIMEOUT_MS = 5000;
+    private static final int FINGER_LOOKUPS_PER_ROUND = 3;
+    // nodes considered for one finger: the owner of its start and the ones after it
+    private static final int FINGER_CANDIDATES = 8;
+    // predecessors stabilize may step back through in one round to find the successor
+    private static final int STABILIZE_STEPS = 16;
+    public static final long SNAPSHOT_INTERVAL_MS = 2000;
+
     private Node local;
-    private Random random;
     private volatile boolean running = true;
     private volatile boolean alive = true;
+    private volatile long period = MIN_PERIOD_MS;
+    private volatile Round currentRound;
+    // next finger to refresh; a pass runs from 1 to 32 over several rounds
+    private volatile int nextFinger = 1;
+
+    // routing state at the end of the last round
+    private NodeRef lastPredecessor;
+    private NodeRef lastSuccessor;
+    private long lastFingerVersion = -1;
+    // start of the first and end of the last round that saw a change, -1 once converged
+    private long changingSince = -1;
+    private long lastChange;
+    // the routing state changed since the last snapshot
+    private volatile boolean snapshotDue;
+    private long lastSnapshot;
 
     public NodeMaintenance(Node node) {
         this.local = node;
-        this.random = new Random();
     }
 
     @Override
     public void run() {
         while (running) {
-            // Update predecessor
-            if (local.getPredecessor() != null && Helper.sendRequest(local.getPredecessor(), "KEEP") == null) {
+            try {
+                tick().join();
+            } catch (CompletionException e) {
+                System.err.println("Maintenance round failed: " + e.getCause());
+            }
+
+            try {
+                Thread.sleep(period);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs one maintenance round. Its requests run concurrently and no thread waits
+     * on the network; the future completes once the last one has been answered or
+     * the round has timed out.
+     */
+    public CompletableFuture<Void> tick() {
+        Round round = new Round(Helper.nanoTime());
+        currentRound = round;
+
+        saveSnapshotIfDue();
+
+        // Carry on with a key handover that was interrupted
+        local.resumeMigration();
+
+        // Bring new replicas of our keys up to date and drop keys we no longer replicate
+        local.getReplicator().checkReplicas();
+        local.getReplicator().dropStaleKeys();
+
+        CompletableFuture<Void> all = CompletableFuture.allOf(
+                checkPredecessor(round),
+                // Drop fingers that stopped answering
+                local.verifyFingers().thenAccept(round.requests::addAndGet),
+                fixFingers(round, nextFinger),
+                stabilize(round));
+        return Helper.completeOnTimeout(all, null, ROUND_TIMEOUT_MS).whenComplete((v, error) -> finish(round));
+    }
+
+    private CompletableFuture<Void> checkPredecessor(Round round) {
+        NodeRef predecessor = local.getPredecessor();
+        if (predecessor == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        round.requests.incrementAndGet();
+        return Helper.sendRequestAsync(predecessor, WireProtocol.encode(WireProtocol.KEEP)).thenAccept(response -> {
+            if (response == null && Helper.getFailureDetector().getState(predecessor.getAddress()) == FailureDetector.State.DEAD) {
                 local.clearPredecessor();
             }
+        });
+    }
 
-            // Fix fingers
-            int i = random.nextInt(31) + 2;
-            InetSocketAddress ithFinger = local.searchSuccessor(Helper.calculateNodePosition(local.getId(), i));
-            if (i > 0 && i <= 32) {
-                local.updateSingleFinger(i, ithFinger);
-            }
-
-            // Stabilize
-            InetSocketAddress successor = local.getSuccessor();
-            if (successor == null || successor.equals(local.getAddress())) {
-                local.fillSuccessor();
-            }
-            successor = local.getSuccessor();
-            if (successor != null && !successor.equals(local.getAddress())) {
-                // Try to get my successor's predecessor
-                InetSocketAddress x = Helper.requestAddress(successor, "YOURPRE");
-
-                // If bad connection with successor, delete successor
-                if (x == null) {
-                    local.deleteSuccessor();
-                } else if (!x.equals(successor)) {
-                    // Successor's predecessor is not itself
-                    long local_id = Helper.hashSocketAddress(local.getAddress());
-                    long successor_relative_id = Helper.computeRelativeId(Helper.hashSocketAddress(successor), local_id);
-                    long x_relative_id = Helper.computeRelativeId(Helper.hashSocketAddress(x), local_id);
-                    if (x_relative_id > 0 && x_relative_id < successor_relative_id) {
-                        local.updateSingleFinger(1,x);
+    /**
+     * Refreshes fingers in index order from i, with at most FINGER_LOOKUPS_PER_ROUND
+     * lookups; the next round carries on where this one stopped. A finger whose start
+     * falls before the node chosen for the finger below it has that same node, so it
+     * is set without a lookup. Finger 1 is the successor and is left to stabilize.
+     */
+    private CompletableFuture<Void> fixFingers(Round round, int i) {
+        NodeRef previous = i > 1 ? local.getFinger(i - 1) : null;
+        return fixFingers(round, i, previous, 0);
+    }
+
+    private CompletableFuture<Void> fixFingers(Round round, int i, NodeRef previous, int lookups) {
+        for (; i <= FingerTable.SIZE; i++) {
+            if (round != currentRound) {
+                // a round that timed out leaves the rest to the one that replaced it
+                return CompletableFuture.completedFuture(null);
+            }
+            if (i == 1) {
+                previous = local.getSuccessor();
+                continue;
+            }
+            if (covers(previous, i)) {
+                local.updateSingleFinger(i, previous);
+                continue;
+            }
+            if (lookups == FINGER_LOOKUPS_PER_ROUND) {
+                nextFinger = i;
+                return CompletableFuture.completedFuture(null);
+            }
+            int index = i;
+            return local.lookupAsync(Helper.calculateNodePosition(local.getId(), index)).thenCompose(result -> {
+                if (result == null || result.getOwner() == null) {
+                    round.disturbed = true;
+                    nextFinger = index;
+                    return CompletableFuture.completedFuture(null);
+                }
+                round.requests.addAndGet(result.getHops());
+                return nearest(round, result.getOwner(), index).thenCompose(chosen -> {
+                    local.updateSingleFinger(index, chosen);
+                    return fixFingers(round, index + 1, chosen, lookups + 1);
+                });
+            });
+        }
+        nextFinger = 1;
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Picks finger i among owner, the successor of its start, and the nodes after
+     * owner that still fall before finger i+1's start, by lowest round trip time.
+     * Candidates that were never measured are pinged first. The current finger is
+     * only replaced by a clearly faster one, so drifting estimates do not make it
+     * flap between nodes.
+     */
+    private CompletableFuture<NodeRef> nearest(Round round, NodeRef owner, int i) {
+        long ownerRelative = Helper.computeRelativeId(owner.getId(), local.getId());
+        long end = 1L << i;
+        NodeRef successor = local.getSuccessor();
+        long spacing = successor != null ? Helper.computeRelativeId(successor.getId(), local.getId()) : 0;
+        // with nodes about as far apart as our successor, only wide intervals hold a second one
+        if (owner.equals(local.getNodeRef()) || spacing == 0 || end - ownerRelative <= spacing) {
+            return CompletableFuture.completedFuture(owner);
+        }
+        round.requests.incrementAndGet();
+        return Helper.sendRequestAsync(owner, WireProtocol.encode(WireProtocol.SUCCESSORS)).thenCompose(response -> {
+            List<NodeRef> candidates = new ArrayList<>(FINGER_CANDIDATES);
+            candidates.add(owner);
+            if (response != null && response.get() == WireProtocol.NODES) {
+                long previous = ownerRelative;
+                for (NodeRef node : WireProtocol.getNodes(response)) {
+                    long relative = Helper.computeRelativeId(node.getId(), local.getId());
+                    if (candidates.size() == FINGER_CANDIDATES || relative <= previous || relative >= end) {
+                        break;
                     }
-                } else {
-                    // Successor's predecessor is successor itself, then notify successor
-                    local.processNodeNotification(successor,"NOTIFY");
+                    candidates.add(node);
+                    previous = relative;
+                }
+            }
+            RttEstimator rtt = Helper.getRttEstimator();
+            List<CompletableFuture<ByteBuffer>> pings = new ArrayList<>();
+            for (NodeRef candidate : candidates) {
+                if (rtt.get(candidate.getAddress()) < 0) {
+                    round.requests.incrementAndGet();
+                    pings.add(Helper.sendRequestAsync(candidate, WireProtocol.encode(WireProtocol.KEEP)));
                 }
             }
+            return CompletableFuture.allOf(pings.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(v -> fastest(candidates, local.getFinger(i)));
+        });
+    }
 
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                return;
+    private static NodeRef fastest(List<NodeRef> candidates, NodeRef current) {
+        RttEstimator rtt = Helper.getRttEstimator();
+        FailureDetector detector = Helper.getFailureDetector();
+        NodeRef best = candidates.get(0);
+        long bestRtt = Long.MAX_VALUE;
+        for (NodeRef candidate : candidates) {
+            long measured = rtt.get(candidate.getAddress());
+            if (measured >= 0 && measured < bestRtt && detector.isAvailable(candidate.getAddress())) {
+                best = candidate;
+                bestRtt = measured;
+            }
+        }
+        if (current != null && !current.equals(best) && candidates.contains(current) && detector.isAvailable(current.getAddress())) {
+            long currentRtt = rtt.get(current.getAddress());
+            // keep the current finger unless the best is at least a quarter faster
+            if (currentRtt >= 0 && bestRtt > currentRtt * 3 / 4) {
+                return current;
             }
         }
+        return best;
+    }
+
+    /**
+     * Whether node, chosen for finger i-1, is also the successor of finger i's start.
+     * A node at or past that start can only have been chosen as the successor of
+     * finger i-1's start, so nothing lies between the two.
+     */
+    private boolean covers(NodeRef node, int i) {
+        if (node == null || node.equals(local.getNodeRef())) {
+            return false;
+        }
+        return Helper.computeRelativeId(node.getId(), local.getId()) >= 1L << (i - 1);
+    }
+
+    private CompletableFuture<Void> stabilize(Round round) {
+        NodeRef successor = local.getSuccessor();
+        if (successor == null || successor.equals(local.getNodeRef())) {
+            local.fillSuccessor();
+        }
+        NodeRef current = local.getSuccessor();
+        if (current == null || current.equals(local.getNodeRef())) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return closestSuccessor(round, current, 0).thenCompose(x -> {
+            // If bad connection with successor, delete it once it is known to be dead
+            if (x == null) {
+                return dropIfDead(current, round);
+            }
+            round.requests.incrementAndGet();
+            if (!x.equals(current)) {
+                // Successor's predecessor lies between us, so it becomes our successor
+                local.updateSingleFinger(1,x);
+            } else {
+                // Otherwise notify successor, which may have lost us as its predecessor
+                local.processNodeNotification(current,"NOTIFY");
+            }
+            // Keep the backup successors current
+            round.requests.incrementAndGet();
+            return local.refreshSuccessorList().thenCompose(refreshed ->
+                    refreshed ? CompletableFuture.<Void>completedFuture(null) : dropIfDead(x, round));
+        });
+    }
+
+    /**
+     * Asks candidate for its predecessor and, while that lies between this node and
+     * candidate, carries on from it. A node that joined with a successor too far
+     * ahead so finds the right one in a single round rather than one node per round.
+     * Completes with null if candidate itself did not answer.
+     */
+    private CompletableFuture<NodeRef> closestSuccessor(Round round, NodeRef candidate, int steps) {
+        round.requests.incrementAndGet();
+        return Helper.requestNodeAsync(candidate, WireProtocol.encode(WireProtocol.FINDPRE)).thenCompose(x -> {
+            if (x == null) {
+                // a node we stepped back to is as good a successor as the last round would have left
+                return CompletableFuture.completedFuture(steps == 0 ? null : candidate);
+            }
+            long candidateRelative = Helper.computeRelativeId(candidate.getId(), local.getId());
+            long xRelative = Helper.computeRelativeId(x.getId(), local.getId());
+            if (xRelative == 0 || xRelative >= candidateRelative) {
+                return CompletableFuture.completedFuture(candidate);
+            }
+            if (steps + 1 == STABILIZE_STEPS || round != currentRound) {
+                return CompletableFuture.completedFuture(x);
+            }
+            return closestSuccessor(round, x, steps + 1);
+        });
+    }
+
+    /**
+     * Deletes successor once the failure detector declares it dead. Until then a
+     * failed request may be a lost packet, so the next round, which comes sooner
+     * for the disturbance, just tries again.
+     */
+    private CompletableFuture<Void> dropIfDead(NodeRef successor, Round round) {
+        round.disturbed = true;
+        if (Helper.getFailureDetector().getState(successor.getAddress()) != FailureDetector.State.DEAD) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return local.deleteSuccessor();
+    }
+
+    /**
+     * Saves the routing state if it changed and the last snapshot is old enough.
+     * Called at the start of a round, never from a response callback, so no
+     * transport thread waits on the disk.
+     */
+    private void saveSnapshotIfDue() {
+        long now = Helper.currentTimeMillis();
+        if (snapshotDue && now - lastSnapshot >= SNAPSHOT_INTERVAL_MS) {
+            snapshotDue = false;
+            lastSnapshot = now;
+            local.saveRoutingSnapshot();
+        }
+    }
+
+    /**
+     * Compares the routing state with the end of the last round, picks the period
+     * before the next round and records the round.
+     */
+    private synchronized void finish(Round round) {
+        long now = Helper.nanoTime();
+        NodeRef predecessor = local.getPredecessor();
+        NodeRef successor = local.getSuccessor();
+        long fingerVersion = local.getFingerVersion();
+        boolean changed = round.disturbed || !Objects.equals(predecessor, lastPredecessor)
+                || !Objects.equals(successor, lastSuccessor) || fingerVersion != lastFingerVersion;
+        lastPredecessor = predecessor;
+        lastSuccessor = successor;
+        lastFingerVersion = fingerVersion;
+
+        PerformanceMetrics metrics = Helper.getMetrics();
+        if (changed) {
+            snapshotDue = true;
+            period = MIN_PERIOD_MS;
+            if (changingSince < 0) {
+                changingSince = round.start;
+            }
+            lastChange = now;
+        } else {
+            period = Math.min(period * 2, MAX_PERIOD_MS);
+            if (changingSince >= 0) {
+                metrics.recordConvergence(lastChange - changingSince);
+                changingSince = -1;
+            }
+        }
+        metrics.recordMaintenanceRound(now - round.start, round.requests.get(), period);
+    }
+
+    /**
+     * Milliseconds to wait before the next round.
+     */
+    public long getPeriod() {
+        return period;
+    }
+
+    public Node getNode() {
+        return local;
+    }
+
+    public boolean isRunning() {
+        return running;
     }
 
     public void stopNodeMaintenance() {
         running = false;
     }
 
+    /**
+     * Stops the maintenance thread, waking it if it is waiting for the next round.
+     */
     public void toDie() {
         alive = false;
+        running = false;
+        interrupt();
+    }
+
+    private static final class Round {
+
+        private final long start;
+        private final AtomicInteger requests = new AtomicInteger();
+        // a request failed, so the state may be wrong even if it did not change
+        private volatile boolean disturbed;
+
+        private Round(long start) {
+            this.start = start;
+        }
     }
 }
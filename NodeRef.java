@@ -0,0 +1,54 @@
+import java.net.InetSocketAddress;
+
+/**
+ * A reference to a node on the ring: its address together with its identifier.
+ * The id is computed once when the reference is created (or taken from the wire),
+ * so routing code can compare positions without hashing addresses again.
+ */
+public final class NodeRef {
+
+    private final InetSocketAddress address;
+    private final long id;
+
+    public NodeRef(InetSocketAddress address) {
+        this(address, Helper.hashSocketAddress(address));
+    }
+
+    public NodeRef(InetSocketAddress address, long id) {
+        if (address == null) {
+            throw new IllegalArgumentException("Node address must not be null");
+        }
+        this.address = address;
+        this.id = id;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof NodeRef)) {
+            return false;
+        }
+        NodeRef other = (NodeRef) o;
+        return id == other.id && address.equals(other.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) id;
+    }
+
+    @Override
+    public String toString() {
+        return address.toString();
+    }
+}
@@ -1,47 +1,261 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for everything the nodes of this process do:
+ * requests sent and served per opcode, lookups, maintenance rounds, finger
+ * changes and connections. One instance is shared by the whole process, see
+ * {@link Helper#getMetrics()}.
+ *
+ * Recording is lock-free and allocation-free: counters are striped
+ * {@link LongAdder}s and latencies go into {@link LatencyHistogram}s, so the
+ * request path can record on every call. Readers take a {@link Snapshot}.
+ */
 public class PerformanceMetrics {
-    private long totalLatency;
-    private int totalQueries;
-    private int successfulQueries;
-    private long totalStabilizationTime;
-    private int stabilizationEvents;
 
-    public PerformanceMetrics() {
-        this.totalLatency = 0;
-        this.totalQueries = 0;
-        this.successfulQueries = 0;
-        this.totalStabilizationTime = 0;
-        this.stabilizationEvents = 0;
+    public enum Counter {
+        FINGER_CHANGES,
+        CONNECTIONS_OPENED,
+        CONNECTIONS_REUSED,
+        CONNECTIONS_CLOSED,
+        CONNECTION_RETRIES,
+        SERVER_CONNECTIONS_ACCEPTED,
+        SERVER_CONNECTIONS_CLOSED,
+        MAINTENANCE_REQUESTS
     }
 
-    public void updateMetrics(long latency, boolean isSuccess, long stabilizationTime) {
-        this.totalLatency += latency;
-        this.totalQueries++;
-        if (isSuccess) {
-            this.successfulQueries++;
+    // request opcodes are small; anything beyond this is counted under 0
+    private static final int OPCODES = 0x20;
+
+    private final LatencyHistogram[] clientLatency = new LatencyHistogram[OPCODES];
+    private final LongAdder[] clientFailures = new LongAdder[OPCODES];
+    private final LatencyHistogram[] serverLatency = new LatencyHistogram[OPCODES];
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private final LatencyHistogram lookupHops = new LatencyHistogram();
+    private final LatencyHistogram stabilization = new LatencyHistogram();
+    private final LatencyHistogram maintenancePeriod = new LatencyHistogram();
+    private final LatencyHistogram convergence = new LatencyHistogram();
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+
+    public PerformanceMetrics() {
+        for (int i = 0; i < OPCODES; i++) {
+            clientLatency[i] = new LatencyHistogram();
+            clientFailures[i] = new LongAdder();
+            serverLatency[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
         }
-        if (stabilizationTime > 0) {
-            this.totalStabilizationTime += stabilizationTime;
-            this.stabilizationEvents++;
+    }
+
+    /**
+     * Records a request this process sent, from sending it to its response or
+     * failure.
+     */
+    public void recordClientRequest(byte opcode, long nanos, boolean success) {
+        int i = slot(opcode);
+        clientLatency[i].record(nanos);
+        if (!success) {
+            clientFailures[i].increment();
         }
     }
 
-    public double getAverageLatency() {
-        return totalQueries > 0 ? (double) totalLatency / totalQueries : 0;
+    /**
+     * Records a request this process served, from dispatch to its response.
+     */
+    public void recordServerRequest(byte opcode, long nanos) {
+        serverLatency[slot(opcode)].record(nanos);
+    }
+
+    public void recordLookup(int hops, long nanos) {
+        lookupHops.record(hops);
+        lookupLatency.record(nanos);
+    }
+
+    /**
+     * Records one maintenance round: how long it took, stabilization included, how
+     * many requests it sent and how long its node waits before the next one.
+     */
+    public void recordMaintenanceRound(long nanos, int requests, long periodMs) {
+        stabilization.record(nanos);
+        counters[Counter.MAINTENANCE_REQUESTS.ordinal()].add(requests);
+        maintenancePeriod.record(periodMs);
+    }
+
+    /**
+     * Records how long a node's routing state kept changing, from the first round
+     * that saw a change to the first round that saw none.
+     */
+    public void recordConvergence(long nanos) {
+        convergence.record(nanos);
     }
 
-    public double getSuccessRate() {
-        return totalQueries > 0 ? (double) successfulQueries / totalQueries * 100 : 0;
+    public void increment(Counter counter) {
+        counters[counter.ordinal()].increment();
     }
 
-    public double getAverageStabilizationTime() {
-        return stabilizationEvents > 0 ? (double) totalStabilizationTime / stabilizationEvents : 0;
+    public void add(Counter counter, long delta) {
+        counters[counter.ordinal()].add(delta);
+    }
+
+    public Snapshot snapshot() {
+        LatencyHistogram.Snapshot[] client = new LatencyHistogram.Snapshot[OPCODES];
+        long[] failures = new long[OPCODES];
+        LatencyHistogram.Snapshot[] server = new LatencyHistogram.Snapshot[OPCODES];
+        for (int i = 0; i < OPCODES; i++) {
+            client[i] = clientLatency[i].snapshot();
+            failures[i] = clientFailures[i].sum();
+            server[i] = serverLatency[i].snapshot();
+        }
+        long[] counts = new long[counters.length];
+        for (int i = 0; i < counters.length; i++) {
+            counts[i] = counters[i].sum();
+        }
+        return new Snapshot(client, failures, server, lookupLatency.snapshot(), lookupHops.snapshot(), stabilization.snapshot(),
+                maintenancePeriod.snapshot(), convergence.snapshot(), counts);
+    }
+
+    /**
+     * Clears every counter and histogram, e.g. between two phases of a benchmark.
+     */
+    public void reset() {
+        for (int i = 0; i < OPCODES; i++) {
+            clientLatency[i].reset();
+            clientFailures[i].reset();
+            serverLatency[i].reset();
+        }
+        lookupLatency.reset();
+        lookupHops.reset();
+        stabilization.reset();
+        maintenancePeriod.reset();
+        convergence.reset();
+        for (LongAdder counter : counters) {
+            counter.reset();
+        }
     }
 
     @Override
     public String toString() {
-        return "Performance Metrics:\n" +
-               "Average Latency = " + getAverageLatency() + " ns\n" +
-               "Success Rate = " + getSuccessRate() + "%\n" +
-               "Average Stabilization Time = " + getAverageStabilizationTime() + " ms\n";
+        return snapshot().toString();
+    }
+
+    private static int slot(byte opcode) {
+        int i = opcode & 0xFF;
+        return i < OPCODES ? i : 0;
+    }
+
+    /**
+     * The metrics as they were at one moment.
+     */
+    public static final class Snapshot {
+
+        private final LatencyHistogram.Snapshot[] client;
+        private final long[] clientFailures;
+        private final LatencyHistogram.Snapshot[] server;
+        private final LatencyHistogram.Snapshot lookupLatency;
+        private final LatencyHistogram.Snapshot lookupHops;
+        private final LatencyHistogram.Snapshot stabilization;
+        private final LatencyHistogram.Snapshot maintenancePeriod;
+        private final LatencyHistogram.Snapshot convergence;
+        private final long[] counters;
+
+        private Snapshot(LatencyHistogram.Snapshot[] client, long[] clientFailures, LatencyHistogram.Snapshot[] server,
+                LatencyHistogram.Snapshot lookupLatency, LatencyHistogram.Snapshot lookupHops,
+                LatencyHistogram.Snapshot stabilization, LatencyHistogram.Snapshot maintenancePeriod,
+                LatencyHistogram.Snapshot convergence, long[] counters) {
+            this.client = client;
+            this.clientFailures = clientFailures;
+            this.server = server;
+            this.lookupLatency = lookupLatency;
+            this.lookupHops = lookupHops;
+            this.stabilization = stabilization;
+            this.maintenancePeriod = maintenancePeriod;
+            this.convergence = convergence;
+            this.counters = counters;
+        }
+
+        public LatencyHistogram.Snapshot getClientLatency(byte opcode) {
+            return client[slot(opcode)];
+        }
+
+        public long getClientFailures(byte opcode) {
+            return clientFailures[slot(opcode)];
+        }
+
+        public LatencyHistogram.Snapshot getServerLatency(byte opcode) {
+            return server[slot(opcode)];
+        }
+
+        public LatencyHistogram.Snapshot getLookupLatency() {
+            return lookupLatency;
+        }
+
+        public LatencyHistogram.Snapshot getLookupHops() {
+            return lookupHops;
+        }
+
+        public LatencyHistogram.Snapshot getStabilization() {
+            return stabilization;
+        }
+
+        /**
+         * Milliseconds between maintenance rounds, as chosen by each round.
+         */
+        public LatencyHistogram.Snapshot getMaintenancePeriod() {
+            return maintenancePeriod;
+        }
+
+        public LatencyHistogram.Snapshot getConvergence() {
+            return convergence;
+        }
+
+        /**
+         * Maintenance requests per second sent by an average node: requests per
+         * round over the mean time between rounds.
+         */
+        public double getMaintenanceRate() {
+            long rounds = stabilization.getCount();
+            double period = maintenancePeriod.getMean();
+            return rounds > 0 && period > 0 ? get(Counter.MAINTENANCE_REQUESTS) / (double) rounds / (period / 1000) : 0;
+        }
+
+        public long get(Counter counter) {
+            return counters[counter.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder("\n--- Performance Metrics ---\n");
+            text.append(String.format("%-22s %10s %8s %10s %10s %10s %10s%n", "Latency (us)", "count", "failed", "p50", "p99", "p999", "max"));
+            for (int i = 0; i < OPCODES; i++) {
+                if (client[i].getCount() > 0) {
+                    appendLatency(text, "sent " + WireProtocol.requestName(i), client[i], clientFailures[i]);
+                }
+            }
+            for (int i = 0; i < OPCODES; i++) {
+                if (server[i].getCount() > 0) {
+                    appendLatency(text, "served " + WireProtocol.requestName(i), server[i], 0);
+                }
+            }
+            appendLatency(text, "lookup", lookupLatency, 0);
+            appendLatency(text, "maintenance round", stabilization, 0);
+            text.append(String.format("Lookup hops: mean %.2f, p50 %d, p99 %d, max %d%n",
+                    lookupHops.getMean(), lookupHops.getPercentile(0.5), lookupHops.getPercentile(0.99), lookupHops.getMax()));
+            text.append(String.format("Maintenance: %d requests, period p50 %d ms, max %d ms, %.2f requests/s per node%n",
+                    get(Counter.MAINTENANCE_REQUESTS), maintenancePeriod.getPercentile(0.5), maintenancePeriod.getMax(), getMaintenanceRate()));
+            text.append(String.format("Convergence: %d times, p50 %d ms, p99 %d ms, max %d ms%n", convergence.getCount(),
+                    convergence.getPercentile(0.5) / 1000000, convergence.getPercentile(0.99) / 1000000, convergence.getMax() / 1000000));
+            text.append("Finger changes: ").append(get(Counter.FINGER_CHANGES)).append('\n');
+            text.append(String.format("Client connections: %d opened, %d reused, %d closed, %d retried%n",
+                    get(Counter.CONNECTIONS_OPENED), get(Counter.CONNECTIONS_REUSED), get(Counter.CONNECTIONS_CLOSED), get(Counter.CONNECTION_RETRIES)));
+            text.append(String.format("Server connections: %d accepted, %d closed%n",
+                    get(Counter.SERVER_CONNECTIONS_ACCEPTED), get(Counter.SERVER_CONNECTIONS_CLOSED)));
+            return text.toString();
+        }
+
+        private static void appendLatency(StringBuilder text, String name, LatencyHistogram.Snapshot latency, long failed) {
+            text.append(String.format("%-22s %10d %8d %10.1f %10.1f %10.1f %10.1f%n", name, latency.getCount(), failed,
+                    latency.getPercentile(0.5) / 1000.0, latency.getPercentile(0.99) / 1000.0,
+                    latency.getPercentile(0.999) / 1000.0, latency.getMax() / 1000.0));
+        }
     }
 }
@@ -0,0 +1,311 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps each key on its owner and on the next factor - 1 nodes of the owner's
+ * successor list.
+ *
+ * The owner coordinates writes: it applies them locally, forwards them to the
+ * replicas and acknowledges once as many copies as the consistency level asks for
+ * are written. Replicas that fall behind catch up when the owner re-pushes its
+ * range, which happens whenever its replica set or predecessor changes, e.g.
+ * after a successor died and the successor list promoted the next node.
+ *
+ * Reads may be served by any replica. The reader picks the one it currently has
+ * the fewest requests outstanding with, and falls back to the owner if that
+ * replica does not have the key, so reads are eventually consistent under ONE.
+ */
+public class Replicator {
+
+    public enum Consistency { ONE, QUORUM, ALL }
+
+    public static final int DEFAULT_FACTOR = 3;
+
+    private static final long REPLICA_SET_TTL_MS = 5000;
+    private static final long STALE_CHECK_INTERVAL_MS = 10000;
+
+    private final Node local;
+    private volatile int factor = DEFAULT_FACTOR;
+    private volatile Consistency consistency = Consistency.QUORUM;
+
+    // replicas that hold this node's whole range, valid for replicatedPredecessor
+    private final Set<NodeRef> replicatedTo = ConcurrentHashMap.newKeySet();
+    private final Set<NodeRef> catchingUp = ConcurrentHashMap.newKeySet();
+    private volatile NodeRef replicatedPredecessor;
+
+    // lower end of the keys we replicate, as found by the last stale key check
+    private volatile NodeRef replicaBound;
+    private volatile long nextStaleCheck;
+
+    // reader side: replica sets of other owners and our outstanding requests per peer
+    private final Map<NodeRef, CachedReplicas> replicaSets = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+
+    public Replicator(Node local) {
+        this.local = local;
+    }
+
+    public void setFactor(int factor) {
+        if (factor < 1 || factor > local.getSuccessorListCapacity() + 1) {
+            throw new IllegalArgumentException("Replication factor must be between 1 and the successor list size + 1");
+        }
+        this.factor = factor;
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+
+    public void setConsistency(Consistency consistency) {
+        this.consistency = consistency;
+    }
+
+    public Consistency getConsistency() {
+        return consistency;
+    }
+
+    /**
+     * The nodes holding copies of this node's keys, nearest first, not counting
+     * this node.
+     */
+    public NodeRef[] replicas() {
+        return replicasOf(local.getNodeRef(), local.getSuccessorList());
+    }
+
+    private NodeRef[] replicasOf(NodeRef owner, NodeRef[] successors) {
+        List<NodeRef> replicas = new ArrayList<>(factor - 1);
+        for (NodeRef node : successors) {
+            if (replicas.size() == factor - 1 || node.equals(owner)) {
+                break;
+            }
+            replicas.add(node);
+        }
+        return replicas.toArray(new NodeRef[0]);
+    }
+
+    /**
+     * Applies a write as the owner of key and forwards it to the replicas. value is
+     * null for a delete. Completes with true once the copies required by level are
+     * written; for a delete, also only if the key existed here.
+     */
+    public CompletableFuture<Boolean> write(byte[] key, byte[] value, Consistency level) {
+        DataStore store = local.getDataStore();
+        boolean existed = true;
+        if (value != null) {
+            store.put(key, value);
+        } else {
+            existed = store.delete(key);
+        }
+        NodeRef[] replicas = replicas();
+        int required = Math.min(requiredCopies(level), replicas.length + 1) - 1;
+        CompletableFuture<Boolean> written = new CompletableFuture<>();
+        if (required == 0) {
+            written.complete(existed);
+        }
+        if (replicas.length == 0) {
+            return written;
+        }
+        // the transport sends a duplicate, so all replicas can share one frame
+        ByteBuffer frame = value != null
+                ? WireProtocol.encodeTransfer(Collections.singletonList(new AbstractMap.SimpleEntry<>(new DataStore.StoreKey(key), value)))
+                : WireProtocol.encodeKeyValue(WireProtocol.DROP, key, null);
+        AtomicInteger acks = new AtomicInteger();
+        AtomicInteger answers = new AtomicInteger();
+        boolean found = existed;
+        for (NodeRef replica : replicas) {
+            Helper.sendRequestAsync(replica, frame).thenAccept(response -> {
+                boolean acked = response != null && WireProtocol.opcode(response) == WireProtocol.ACK;
+                if (acked && acks.incrementAndGet() == required) {
+                    written.complete(found);
+                }
+                if (answers.incrementAndGet() == replicas.length && acks.get() < required) {
+                    written.complete(false);
+                }
+            });
+        }
+        return written;
+    }
+
+    private int requiredCopies(Consistency level) {
+        switch (level) {
+            case ALL:
+                return factor;
+            case QUORUM:
+                return factor / 2 + 1;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Brings new replicas up to date by copying this node's range to them. Called
+     * from maintenance; copies run in the background and one that fails is retried
+     * on the next call.
+     */
+    public void checkReplicas() {
+        NodeRef predecessor = local.getPredecessor();
+        if (predecessor == null || predecessor.equals(local.getNodeRef())) {
+            return;
+        }
+        if (!predecessor.equals(replicatedPredecessor)) {
+            // our range changed, so every replica needs the part it has not seen
+            replicatedTo.clear();
+            replicatedPredecessor = predecessor;
+        }
+        List<NodeRef> current = Arrays.asList(replicas());
+        replicatedTo.retainAll(current);
+        for (NodeRef replica : current) {
+            if (replicatedTo.contains(replica) || !catchingUp.add(replica)) {
+                continue;
+            }
+            new KeyMigration(local.getDataStore(), replica, predecessor.getId(), local.getId(), false).run()
+                    .whenComplete((copied, error) -> {
+                        catchingUp.remove(replica);
+                        if (Boolean.TRUE.equals(copied) && predecessor.equals(replicatedPredecessor)) {
+                            replicatedTo.add(replica);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Deletes the copies this node no longer has to keep. With replication keys are
+     * only ever copied to a new owner or replica, so every join or predecessor change
+     * would otherwise leave copies on a node that has dropped out of their replica
+     * set. This node replicates its own range and those of its factor - 1
+     * predecessors, so everything outside (p, self] goes, p being the factor-th
+     * predecessor. It is found by following predecessors, and keys are only deleted
+     * once two checks in a row agree on it. Called from maintenance.
+     */
+    public void dropStaleKeys() {
+        long now = Helper.currentTimeMillis();
+        NodeRef predecessor = local.getPredecessor();
+        // with a factor of 1 keys are moved rather than copied, and leave no copies behind
+        if (factor == 1 || now < nextStaleCheck || predecessor == null || predecessor.equals(local.getNodeRef())) {
+            return;
+        }
+        nextStaleCheck = now + STALE_CHECK_INTERVAL_MS;
+        predecessorAt(predecessor, factor - 1).thenAccept(bound -> {
+            NodeRef previous = replicaBound;
+            replicaBound = bound;
+            if (bound != null && bound.equals(previous)) {
+                local.getDataStore().deleteRange(local.getId(), bound.getId());
+            }
+        });
+    }
+
+    /**
+     * Follows predecessors steps times back from node. Completes with null if one
+     * cannot be asked, has no predecessor, or the walk comes round to this node,
+     * which happens on a ring of at most factor nodes where every node keeps every key.
+     */
+    private CompletableFuture<NodeRef> predecessorAt(NodeRef node, int steps) {
+        if (steps == 0) {
+            return CompletableFuture.completedFuture(node);
+        }
+        long behind = Helper.computeRelativeId(local.getId(), node.getId());
+        return Helper.requestNodeAsync(node, WireProtocol.encode(WireProtocol.FINDPRE)).thenCompose(pre -> {
+            if (pre == null || pre.equals(node) || Helper.computeRelativeId(local.getId(), pre.getId()) <= behind) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return predecessorAt(pre, steps - 1);
+        });
+    }
+
+    /**
+     * Reads key from one of the replicas of owner, falling back to owner itself if
+     * the chosen replica cannot be reached or does not have the key.
+     */
+    public CompletableFuture<byte[]> read(NodeRef owner, byte[] key) {
+        return replicaSetOf(owner).thenCompose(replicas -> {
+            NodeRef target = leastLoaded(owner, replicas);
+            return get(target, key).thenCompose(value ->
+                    value != null || target.equals(owner) ? CompletableFuture.completedFuture(value) : get(owner, key));
+        });
+    }
+
+    private CompletableFuture<byte[]> get(NodeRef target, byte[] key) {
+        if (target.equals(local.getNodeRef())) {
+            return CompletableFuture.completedFuture(local.getDataStore().get(key));
+        }
+        AtomicInteger load = outstanding.computeIfAbsent(target.getAddress(), k -> new AtomicInteger());
+        load.incrementAndGet();
+        return Helper.sendRequestAsync(target, WireProtocol.encodeKeyValue(WireProtocol.GET, key, null))
+                .thenApply(response -> {
+                    load.decrementAndGet();
+                    return response != null && response.get() == WireProtocol.VALUE ? WireProtocol.getBytes(response) : null;
+                });
+    }
+
+    private NodeRef leastLoaded(NodeRef owner, NodeRef[] replicas) {
+        NodeRef best = owner;
+        int bestLoad = load(owner);
+        // start at a random replica so equally loaded ones share the reads
+        int offset = ThreadLocalRandom.current().nextInt(Math.max(replicas.length, 1));
+        for (int i = 0; i < replicas.length; i++) {
+            NodeRef candidate = replicas[(offset + i) % replicas.length];
+            if (candidate.equals(local.getNodeRef())) {
+                return candidate;
+            }
+            int load = load(candidate);
+            if (load < bestLoad && Helper.getFailureDetector().isAvailable(candidate.getAddress())) {
+                best = candidate;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    private int load(NodeRef node) {
+        AtomicInteger load = outstanding.get(node.getAddress());
+        return load != null ? load.get() : 0;
+    }
+
+    /**
+     * The replicas of owner, from a short-lived cache of the successor lists
+     * owners reported. Completes with no replicas if owner cannot be asked.
+     */
+    private CompletableFuture<NodeRef[]> replicaSetOf(NodeRef owner) {
+        if (factor == 1) {
+            return CompletableFuture.completedFuture(new NodeRef[0]);
+        }
+        if (owner.equals(local.getNodeRef())) {
+            return CompletableFuture.completedFuture(replicas());
+        }
+        CachedReplicas cached = replicaSets.get(owner);
+        long now = Helper.currentTimeMillis();
+        if (cached != null && now < cached.expires) {
+            return CompletableFuture.completedFuture(cached.replicas);
+        }
+        return Helper.sendRequestAsync(owner, WireProtocol.encode(WireProtocol.SUCCESSORS)).thenApply(response -> {
+            if (response == null || response.get() != WireProtocol.NODES) {
+                return new NodeRef[0];
+            }
+            NodeRef[] replicas = replicasOf(owner, WireProtocol.getNodes(response));
+            replicaSets.put(owner, new CachedReplicas(replicas, Helper.currentTimeMillis() + REPLICA_SET_TTL_MS));
+            return replicas;
+        });
+    }
+
+    private static final class CachedReplicas {
+
+        private final NodeRef[] replicas;
+        private final long expires;
+
+        private CachedReplicas(NodeRef[] replicas, long expires) {
+            this.replicas = replicas;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A node's routing state as saved on disk: its predecessor, successor list and
+ * distinct fingers, so a restarted node can rejoin through peers it already
+ * knows instead of rebuilding everything through one contact.
+ *
+ * The file is three NODES frames in the wire encoding. It is written to a
+ * temporary file first and moved into place, so a reader sees either the old
+ * snapshot or the new one, never a mix.
+ */
+public class RoutingSnapshot {
+
+    public static final String FILE_NAME = "routing.snapshot";
+
+    private final NodeRef predecessor;
+    private final NodeRef[] successors;
+    private final NodeRef[] fingers;
+
+    public RoutingSnapshot(NodeRef predecessor, NodeRef[] successors, NodeRef[] fingers) {
+        this.predecessor = predecessor;
+        this.successors = successors;
+        this.fingers = fingers;
+    }
+
+    public void save(Path file) throws IOException {
+        NodeRef[] predecessors = predecessor != null ? new NodeRef[] {predecessor} : new NodeRef[0];
+        ByteBuffer[] frames = {
+                WireProtocol.encode(WireProtocol.NODES, predecessors, predecessors.length),
+                WireProtocol.encode(WireProtocol.NODES, successors, successors.length),
+                WireProtocol.encode(WireProtocol.NODES, fingers, fingers.length)
+        };
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (frames[frames.length - 1].hasRemaining()) {
+                channel.write(frames);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads the snapshot in file, or returns null if there is none or it cannot be
+     * read, for instance because it was written by another protocol version.
+     */
+    public static RoutingSnapshot load(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            NodeRef[][] lists = new NodeRef[3][];
+            for (int i = 0; i < lists.length; i++) {
+                int frameSize = WireProtocol.completeFrameSize(buffer);
+                if (frameSize <= 0) {
+                    System.out.println("Ignoring unreadable routing snapshot " + file);
+                    return null;
+                }
+                ByteBuffer message = WireProtocol.readMessage(buffer, frameSize);
+                message.get();
+                lists[i] = WireProtocol.getNodes(message);
+            }
+            return new RoutingSnapshot(lists[0].length > 0 ? lists[0][0] : null, lists[1], lists[2]);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            System.out.println("Ignoring unreadable routing snapshot " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public NodeRef getPredecessor() {
+        return predecessor;
+    }
+
+    public NodeRef[] getSuccessors() {
+        return successors;
+    }
+
+    public NodeRef[] getFingers() {
+        return fingers;
+    }
+
+    /**
+     * Every node in the snapshot once: predecessor, successors, then fingers.
+     */
+    public List<NodeRef> getPeers() {
+        Set<NodeRef> peers = new LinkedHashSet<>();
+        if (predecessor != null) {
+            peers.add(predecessor);
+        }
+        peers.addAll(Arrays.asList(successors));
+        peers.addAll(Arrays.asList(fingers));
+        return new ArrayList<>(peers);
+    }
+}
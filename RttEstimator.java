@@ -0,0 +1,48 @@
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Smoothed round trip times to peers, measured from the requests already being
+ * made rather than by probing. Like TCP's smoothed RTT, every sample moves a
+ * peer's estimate an eighth of the way towards it, so one slow answer does not
+ * make a nearby peer look distant.
+ */
+public class RttEstimator {
+
+    private static final int SMOOTHING = 8;
+
+    private final Map<InetSocketAddress, PeerRtt> peers = new ConcurrentHashMap<>();
+    // the same average over every sample, a typical round trip on this ring
+    private volatile long typical = -1;
+
+    public void report(InetSocketAddress peer, long nanos) {
+        PeerRtt rtt = peers.computeIfAbsent(peer, k -> new PeerRtt());
+        // not atomic; a lost update only drops one sample
+        rtt.estimate = smooth(rtt.estimate, nanos);
+        typical = smooth(typical, nanos);
+    }
+
+    /**
+     * The estimate for peer in nanoseconds, or -1 if no request to it has been answered yet.
+     */
+    public long get(InetSocketAddress peer) {
+        PeerRtt rtt = peers.get(peer);
+        return rtt != null ? rtt.estimate : -1;
+    }
+
+    /**
+     * The average round trip over all peers in nanoseconds, or -1 before the first sample.
+     */
+    public long getTypical() {
+        return typical;
+    }
+
+    private static long smooth(long estimate, long sample) {
+        return estimate < 0 ? sample : estimate + (sample - estimate) / SMOOTHING;
+    }
+
+    private static final class PeerRtt {
+        private volatile long estimate = -1;
+    }
+}
@@ -0,0 +1,324 @@
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * An in-memory network for running thousands of nodes inside one JVM. Requests
+ * are handed straight to the target's {@link CommunicateManager} after a random
+ * one-way latency, and each direction may be lost with a fixed probability, in
+ * which case the sender sees the same timeout it would over TCP.
+ *
+ * Time is virtual: deliveries, timeouts and maintenance rounds are events in one
+ * queue, and the clock jumps from one event to the next, so no node has a thread
+ * of its own and an hour of ring activity takes as long as its events take to
+ * process. Timeouts and timestamps taken through {@link Helper} follow this clock.
+ *
+ * Nodes can be spread over racks, with a higher latency between racks than within
+ * one. Each event remembers which node it runs for, so a request knows where it
+ * is sent from; code outside the simulation issues requests through {@link #runAs}.
+ *
+ * Everything runs on the thread that calls {@link #runFor} or {@link #await}, and
+ * nodes must only be used from that thread through their asynchronous methods: a
+ * blocking call would wait for an event that can then never run.
+ */
+public class SimulatedTransport implements Transport {
+
+    private static final long READ_TIMEOUT_MS = 3000;
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final Map<InetSocketAddress, CommunicateManager> servers = new HashMap<>();
+    private final Set<InetSocketAddress> crashed = new HashSet<>();
+    private final Map<InetSocketAddress, RttEstimator> rttEstimators = new HashMap<>();
+    private final Map<InetSocketAddress, FailureDetector> failureDetectors = new HashMap<>();
+    private final Random random;
+    private long now;
+    private long sequence;
+    private long minLatency = 10;
+    private long maxLatency = 10;
+    private int racks = 1;
+    private long minRackLatency;
+    private long maxRackLatency;
+    private double loss;
+    // the node the running event acts for, null outside of any node
+    private InetSocketAddress current;
+    private long messages;
+    private long lost;
+
+    public SimulatedTransport(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Sets the range one-way latencies are drawn from, uniformly.
+     */
+    public void setLatency(long minMs, long maxMs) {
+        if (minMs < 0 || maxMs < minMs) {
+            throw new IllegalArgumentException("Latency range must satisfy 0 <= min <= max");
+        }
+        this.minLatency = minMs;
+        this.maxLatency = maxMs;
+    }
+
+    /**
+     * Spreads nodes over count racks by address. Latencies set by {@link #setLatency}
+     * then apply within a rack, and ones between racks are drawn from this range.
+     */
+    public void setRacks(int count, long minMs, long maxMs) {
+        if (count < 1 || minMs < 0 || maxMs < minMs) {
+            throw new IllegalArgumentException("Need at least one rack and 0 <= min <= max");
+        }
+        this.racks = count;
+        this.minRackLatency = minMs;
+        this.maxRackLatency = maxMs;
+    }
+
+    /**
+     * Sets the probability that a request or a response is lost.
+     */
+    public void setLoss(double probability) {
+        if (probability < 0 || probability > 1) {
+            throw new IllegalArgumentException("Loss must be a probability");
+        }
+        this.loss = probability;
+    }
+
+    public long now() {
+        return now;
+    }
+
+    /**
+     * Number of requests sent so far, including lost ones.
+     */
+    public long getMessageCount() {
+        return messages;
+    }
+
+    public long getLostCount() {
+        return lost;
+    }
+
+    /**
+     * Schedules action to run for the node the current event runs for.
+     */
+    public void schedule(long delayMs, Runnable action) {
+        schedule(delayMs, current, action);
+    }
+
+    private void schedule(long delayMs, InetSocketAddress node, Runnable action) {
+        events.add(new Event(now + delayMs, sequence++, node, action));
+    }
+
+    /**
+     * Calls action as the node at address, so that requests it sends leave from there.
+     */
+    public <T> T runAs(InetSocketAddress address, Supplier<T> action) {
+        InetSocketAddress previous = current;
+        current = address;
+        try {
+            return action.get();
+        } finally {
+            current = previous;
+        }
+    }
+
+    /**
+     * Processes every event due within the next ms of virtual time.
+     */
+    public void runFor(long ms) {
+        long end = now + ms;
+        while (!events.isEmpty() && events.peek().time <= end) {
+            runNext();
+        }
+        now = end;
+    }
+
+    /**
+     * Processes events until future is done and returns its result.
+     */
+    public <T> T await(CompletableFuture<T> future) {
+        while (!future.isDone()) {
+            if (events.isEmpty()) {
+                throw new IllegalStateException("Simulation ran out of events before the future completed");
+            }
+            runNext();
+        }
+        return future.join();
+    }
+
+    /**
+     * Takes every node at address off the network at once, without a handover.
+     */
+    public void crash(InetSocketAddress address) {
+        servers.remove(address);
+        crashed.add(address);
+    }
+
+    private void runNext() {
+        Event event = events.poll();
+        now = event.time;
+        current = event.node;
+        try {
+            event.action.run();
+        } catch (RuntimeException e) {
+            System.err.println("Simulated event failed at " + now + " ms: " + e);
+        } finally {
+            current = null;
+        }
+    }
+
+    private long latency(InetSocketAddress from, InetSocketAddress to) {
+        if (from != null && rack(from) != rack(to)) {
+            return minRackLatency + (long) (random.nextDouble() * (maxRackLatency - minRackLatency));
+        }
+        return minLatency + (long) (random.nextDouble() * (maxLatency - minLatency));
+    }
+
+    private int rack(InetSocketAddress address) {
+        return Math.floorMod(address.hashCode(), racks);
+    }
+
+    @Override
+    public CompletableFuture<ByteBuffer> request(InetSocketAddress server, long target, ByteBuffer frame) {
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        // read the frame now, as a socket write would, since the caller may share it
+        ByteBuffer copy = frame.duplicate();
+        ByteBuffer message = WireProtocol.readMessage(copy, WireProtocol.completeFrameSize(copy));
+        long deadline = now + READ_TIMEOUT_MS;
+        InetSocketAddress client = current;
+        messages++;
+        if (random.nextDouble() < loss) {
+            lost++;
+            timeout(response, client, server, deadline);
+            return response;
+        }
+        schedule(latency(client, server), server, () -> deliver(client, server, target, message, response, deadline));
+        return response;
+    }
+
+    private void deliver(InetSocketAddress client, InetSocketAddress server, long target, ByteBuffer message,
+            CompletableFuture<ByteBuffer> response, long deadline) {
+        CommunicateManager handler = servers.get(server);
+        if (handler == null) {
+            schedule(latency(server, client), client, () -> response.completeExceptionally(new ConnectException("Connection refused: " + server)));
+            return;
+        }
+        CompletableFuture<ByteBuffer> handled = handler.handle(target, message);
+        if (!handled.isDone()) {
+            // the handler waits on other nodes and may not answer in time
+            timeout(response, client, server, deadline);
+        }
+        handled.whenComplete((frame, error) -> {
+            if (random.nextDouble() < loss) {
+                lost++;
+                timeout(response, client, server, deadline);
+                return;
+            }
+            ByteBuffer reply = frame != null ? frame : WireProtocol.encode(WireProtocol.UNKNOWN);
+            ByteBuffer answer = WireProtocol.readMessage(reply, WireProtocol.completeFrameSize(reply));
+            schedule(latency(server, client), client, () -> {
+                if (now > deadline) {
+                    response.completeExceptionally(new SocketTimeoutException("Request to " + server + " timed out"));
+                } else {
+                    response.complete(answer);
+                }
+            });
+        });
+    }
+
+    private void timeout(CompletableFuture<ByteBuffer> response, InetSocketAddress client, InetSocketAddress server, long deadline) {
+        schedule(Math.max(deadline - now, 0), client,
+                () -> response.completeExceptionally(new SocketTimeoutException("Request to " + server + " timed out")));
+    }
+
+    @Override
+    public void listen(CommunicateManager server) {
+        servers.put(server.getAddress(), server);
+        crashed.remove(server.getAddress());
+    }
+
+    @Override
+    public void close(CommunicateManager server) {
+        servers.remove(server.getAddress(), server);
+    }
+
+    /**
+     * Schedules the node's maintenance rounds on the virtual clock, starting at a
+     * random point of the first period so that nodes do not all run in step.
+     */
+    @Override
+    public void runMaintenance(NodeMaintenance maintenance) {
+        InetSocketAddress node = maintenance.getNode().getAddress();
+        schedule((long) (random.nextDouble() * NodeMaintenance.MIN_PERIOD_MS), node, () -> round(maintenance));
+    }
+
+    private void round(NodeMaintenance maintenance) {
+        if (!maintenance.isRunning() || crashed.contains(maintenance.getNode().getAddress())) {
+            return;
+        }
+        InetSocketAddress node = maintenance.getNode().getAddress();
+        maintenance.tick().whenComplete((done, error) -> schedule(maintenance.getPeriod(), node, () -> round(maintenance)));
+    }
+
+    /**
+     * Each simulated node measures its own round trip times.
+     */
+    @Override
+    public RttEstimator getRttEstimator() {
+        return rttEstimators.computeIfAbsent(current, k -> new RttEstimator());
+    }
+
+    /**
+     * Each simulated node has its own view of which peers are unreachable, so a
+     * request one node loses does not make the peer suspect to every other node.
+     */
+    @Override
+    public FailureDetector getFailureDetector() {
+        return failureDetectors.computeIfAbsent(current, k -> new FailureDetector());
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public long nanoTime() {
+        return now * 1000000;
+    }
+
+    @Override
+    public <T> CompletableFuture<T> completeOnTimeout(CompletableFuture<T> future, T value, long timeoutMs) {
+        schedule(timeoutMs, () -> future.complete(value));
+        return future;
+    }
+
+    private static final class Event implements Comparable<Event> {
+
+        private final long time;
+        private final long sequence;
+        private final InetSocketAddress node;
+        private final Runnable action;
+
+        private Event(long time, long sequence, InetSocketAddress node, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.node = node;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int c = Long.compare(time, other.time);
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
+    }
+}
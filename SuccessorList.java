@@ -0,0 +1,81 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The nodes that follow this one on the ring, nearest first, so that when the
+ * successor fails the next one can take its place without walking the ring.
+ *
+ * Like the finger table, the entries are an array that is never modified once
+ * published; updates build a new array and swap it in through a volatile field.
+ */
+public class SuccessorList {
+
+    public static final int DEFAULT_SIZE = 8;
+
+    private final NodeRef self;
+    private final int size;
+    private volatile NodeRef[] nodes = new NodeRef[0];
+
+    public SuccessorList(NodeRef self, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Successor list size must be at least 1");
+        }
+        this.self = self;
+        this.size = size;
+    }
+
+    public int capacity() {
+        return size;
+    }
+
+    /**
+     * The current entries, nearest first. The returned array must not be modified.
+     */
+    public NodeRef[] toArray() {
+        return nodes;
+    }
+
+    /**
+     * Rebuilds the list from the successor and the list the successor reported for
+     * itself, dropping duplicates and stopping where the ring wraps back to this node.
+     */
+    public synchronized void refresh(NodeRef successor, NodeRef[] successorsOfSuccessor) {
+        List<NodeRef> merged = new ArrayList<>(size);
+        merged.add(successor);
+        for (NodeRef node : successorsOfSuccessor) {
+            if (merged.size() == size || node.equals(self)) {
+                break;
+            }
+            if (!merged.contains(node)) {
+                merged.add(node);
+            }
+        }
+        nodes = merged.toArray(new NodeRef[0]);
+    }
+
+    public synchronized void remove(NodeRef node) {
+        List<NodeRef> kept = new ArrayList<>(nodes.length);
+        for (NodeRef entry : nodes) {
+            if (!entry.equals(node)) {
+                kept.add(entry);
+            }
+        }
+        if (kept.size() != nodes.length) {
+            nodes = kept.toArray(new NodeRef[0]);
+        }
+    }
+
+    /**
+     * Returns the nearest entry the failure detector considers reachable, the
+     * nearest entry at all if none is, or null if the list is empty.
+     */
+    public NodeRef firstAvailable(FailureDetector detector) {
+        NodeRef[] current = nodes;
+        for (NodeRef node : current) {
+            if (detector.isAvailable(node.getAddress())) {
+                return node;
+            }
+        }
+        return current.length > 0 ? current[0] : null;
+    }
+}
@@ -0,0 +1,66 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How nodes reach each other. The client side sends a request frame and gets the
+ * response back as a future; the server side makes a process's
+ * {@link CommunicateManager} reachable at its address.
+ *
+ * A transport also owns the clock that timeouts, timestamps and the periodic
+ * maintenance run on, so that a simulated network can replace wall time with its
+ * own virtual time. It keeps the round trip times and failures seen by the
+ * sending node as well, since those depend on where requests leave from.
+ * {@link AsyncTransport} is the TCP implementation and the
+ * default; {@link SimulatedTransport} runs a whole ring inside one JVM.
+ */
+public interface Transport {
+
+    /**
+     * Sends a request frame built by {@link WireProtocol} to the virtual node with
+     * id target at server. The future completes with the response positioned at
+     * its opcode, or exceptionally if the server could not be reached in time.
+     */
+    CompletableFuture<ByteBuffer> request(InetSocketAddress server, long target, ByteBuffer frame);
+
+    /**
+     * Starts delivering requests for server's address to server.
+     */
+    void listen(CommunicateManager server);
+
+    /**
+     * Stops delivering requests to server.
+     */
+    void close(CommunicateManager server);
+
+    /**
+     * Starts running maintenance rounds until it is stopped.
+     */
+    void runMaintenance(NodeMaintenance maintenance);
+
+    /**
+     * Round trip times to peers as seen by the node that is sending.
+     */
+    RttEstimator getRttEstimator();
+
+    /**
+     * Which peers the node that is sending has found unreachable.
+     */
+    FailureDetector getFailureDetector();
+
+    default long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    default long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Completes future with value if it is not done after timeoutMs.
+     */
+    default <T> CompletableFuture<T> completeOnTimeout(CompletableFuture<T> future, T value, long timeoutMs) {
+        return future.completeOnTimeout(value, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+}
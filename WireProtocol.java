@@ -0,0 +1,473 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of the requests and responses exchanged between nodes.
+ *
+ * Every frame is a 14 byte header followed by the payload:
+ * <pre>
+ *   version (1) | opcode (1) | payload length (4) | target id (4) | request id (4) | payload
+ * </pre>
+ * The target id picks which of the virtual nodes behind an address a request is
+ * for. Encoders leave it 0, meaning the process's default node, and the transport
+ * fills it in per request. The request id is chosen by the client and copied into
+ * the response, so one connection can carry many requests at once and answer them
+ * in any order.
+ * Ids are sent as unsigned 32-bit integers. A node is sent as its id followed
+ * by its address: a length byte, the raw 4 or 16 byte IP and a 16-bit port,
+ * so decoding never goes through a String, a name lookup or a rehash.
+ * A connection whose first byte is not VERSION is treated as a text session
+ * (one command per line, e.g. "FINDSUCC_1234"), which is only meant for
+ * poking at a node by hand.
+ */
+public final class WireProtocol {
+
+    public static final byte VERSION = 4;
+    public static final int HEADER_SIZE = 14;
+    public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+    // a NODES answer holds at most 255 nodes: the successor and one per id
+    public static final int MAX_STEPS_IDS = 254;
+
+    // requests
+    public static final byte KEEP = 0x01;
+    public static final byte YOURSUCC = 0x02;
+    public static final byte FINDPRE = 0x03;
+    public static final byte CLOSEST = 0x04;
+    public static final byte FINDSUCC = 0x05;
+    public static final byte PREFOUND = 0x06;
+    public static final byte STEP = 0x07;
+    public static final byte ROUTE = 0x08;
+    public static final byte ROUTED = 0x09;
+    public static final byte PUT = 0x0A;
+    public static final byte GET = 0x0B;
+    public static final byte DELETE = 0x0C;
+    public static final byte TRANSFER = 0x0D;
+    public static final byte SUCCESSORS = 0x0E;
+    public static final byte DROP = 0x0F;
+    public static final byte STEPS = 0x10;
+    public static final byte FINGERS = 0x11;
+
+    // responses
+    public static final byte ALIVE = (byte) 0x81;
+    public static final byte NOTIFIED = (byte) 0x82;
+    public static final byte NODE = (byte) 0x83;
+    public static final byte NOTHING = (byte) 0x84;
+    public static final byte UNKNOWN = (byte) 0x85;
+    public static final byte NODES = (byte) 0x86;
+    public static final byte ACK = (byte) 0x87;
+    public static final byte VALUE = (byte) 0x88;
+    public static final byte NOT_OWNER = (byte) 0x89;
+    public static final byte TABLE = (byte) 0x8A;
+
+    private static final int MAX_NODE_SIZE = 4 + 1 + 16 + 2;
+
+    // indexed by request opcode
+    private static final String[] REQUEST_NAMES = {
+        "OTHER", "KEEP", "YOURSUCC", "FINDPRE", "CLOSEST", "FINDSUCC", "PREFOUND", "STEP",
+        "ROUTE", "ROUTED", "PUT", "GET", "DELETE", "TRANSFER", "SUCCESSORS", "DROP", "STEPS",
+        "FINGERS"
+    };
+
+    private WireProtocol() {
+    }
+
+    public static ByteBuffer encode(byte opcode) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE);
+        writeHeader(frame, opcode, 0);
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(byte opcode, long id) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 4);
+        writeHeader(frame, opcode, 4);
+        frame.putInt((int) id);
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(byte opcode, long id, int count) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 5);
+        writeHeader(frame, opcode, 5);
+        frame.putInt((int) id).put((byte) count);
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(byte opcode, NodeRef node) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + MAX_NODE_SIZE);
+        frame.position(HEADER_SIZE);
+        putNode(frame, node);
+        return finish(frame, opcode);
+    }
+
+    /**
+     * A recursive lookup for id on behalf of origin, tagged with the origin's request id
+     * and the number of hops it has travelled so far.
+     */
+    public static ByteBuffer encodeRoute(long requestId, long id, NodeRef origin, int hops) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 8 + 4 + MAX_NODE_SIZE + 1);
+        frame.position(HEADER_SIZE);
+        frame.putLong(requestId).putInt((int) id);
+        putNode(frame, origin);
+        frame.put((byte) hops);
+        return finish(frame, ROUTE);
+    }
+
+    /**
+     * The answer to a recursive lookup, sent by the last hop straight to the origin.
+     * The last hop, whose successor owner is, comes after the hop count so that the
+     * origin can cache the owner's range.
+     */
+    public static ByteBuffer encodeRouted(long requestId, NodeRef owner, int hops, NodeRef from) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 8 + 2 * MAX_NODE_SIZE + 1);
+        frame.position(HEADER_SIZE);
+        frame.putLong(requestId);
+        putNode(frame, owner);
+        frame.put((byte) hops);
+        putNode(frame, from);
+        return finish(frame, ROUTED);
+    }
+
+    public static ByteBuffer encode(byte opcode, byte[] bytes) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 4 + bytes.length);
+        writeHeader(frame, opcode, 4 + bytes.length);
+        putBytes(frame, bytes);
+        return frame.flip();
+    }
+
+    /**
+     * Encodes a key and, if value is not null, a value, each as a 32-bit length
+     * followed by the bytes. Used for PUT, GET, DELETE and DROP requests.
+     */
+    public static ByteBuffer encodeKeyValue(byte opcode, byte[] key, byte[] value) {
+        int length = 4 + key.length + (value != null ? 4 + value.length : 0);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        writeHeader(frame, opcode, length);
+        putBytes(frame, key);
+        if (value != null) {
+            putBytes(frame, value);
+        }
+        return frame.flip();
+    }
+
+    /**
+     * One lookup step for several ids at once: a 16-bit count followed by count
+     * ids taken from ids starting at offset. Answered with NODES holding the
+     * responder's successor and then one next hop per id, in the same order.
+     */
+    public static ByteBuffer encodeSteps(long[] ids, int offset, int count) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 2 + 4 * count);
+        writeHeader(frame, STEPS, 2 + 4 * count);
+        frame.putShort((short) count);
+        for (int i = offset; i < offset + count; i++) {
+            frame.putInt((int) ids[i]);
+        }
+        return frame.flip();
+    }
+
+    /**
+     * A PUT or DELETE that also asks the owner to acknowledge only once the copies
+     * required by consistency, a {@link Replicator.Consistency} ordinal, are written.
+     * Without the trailing byte the owner applies its own default.
+     */
+    public static ByteBuffer encodeKeyValue(byte opcode, byte[] key, byte[] value, int consistency) {
+        int length = 4 + key.length + (value != null ? 4 + value.length : 0) + 1;
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        writeHeader(frame, opcode, length);
+        putBytes(frame, key);
+        if (value != null) {
+            putBytes(frame, value);
+        }
+        frame.put((byte) consistency);
+        return frame.flip();
+    }
+
+    /**
+     * A batch of entries handed over to their new owner: a 32-bit count followed by
+     * each key and value as in {@link #encodeKeyValue}.
+     */
+    public static ByteBuffer encodeTransfer(List<Map.Entry<DataStore.StoreKey, byte[]>> entries) {
+        int length = 4;
+        for (Map.Entry<DataStore.StoreKey, byte[]> entry : entries) {
+            length += 8 + entry.getKey().getKey().length + entry.getValue().length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        writeHeader(frame, TRANSFER, length);
+        frame.putInt(entries.size());
+        for (Map.Entry<DataStore.StoreKey, byte[]> entry : entries) {
+            putBytes(frame, entry.getKey().getKey());
+            putBytes(frame, entry.getValue());
+        }
+        return frame.flip();
+    }
+
+    /**
+     * Writes the header for a payload that was written starting at HEADER_SIZE and
+     * returns the frame ready for sending.
+     */
+    private static ByteBuffer finish(ByteBuffer frame, byte opcode) {
+        int length = frame.position() - HEADER_SIZE;
+        frame.position(0);
+        writeHeader(frame, opcode, length);
+        return frame.position(0).limit(HEADER_SIZE + length);
+    }
+
+    /**
+     * Encodes the first count entries of nodes as a count byte followed by the nodes.
+     */
+    public static ByteBuffer encode(byte opcode, NodeRef[] nodes, int count) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 1 + count * MAX_NODE_SIZE);
+        frame.position(HEADER_SIZE);
+        frame.put((byte) count);
+        for (int i = 0; i < count; i++) {
+            putNode(frame, nodes[i]);
+        }
+        return finish(frame, opcode);
+    }
+
+    /**
+     * The answer to FINGERS: the responder's successor list and then its distinct
+     * fingers in index order, each as a count byte followed by the nodes.
+     */
+    public static ByteBuffer encodeTable(NodeRef[] successors, NodeRef[] fingers, int fingerCount) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 2 + (successors.length + fingerCount) * MAX_NODE_SIZE);
+        frame.position(HEADER_SIZE);
+        frame.put((byte) successors.length);
+        for (NodeRef successor : successors) {
+            putNode(frame, successor);
+        }
+        frame.put((byte) fingerCount);
+        for (int i = 0; i < fingerCount; i++) {
+            putNode(frame, fingers[i]);
+        }
+        return finish(frame, TABLE);
+    }
+
+    private static void writeHeader(ByteBuffer frame, byte opcode, int payloadLength) {
+        frame.put(VERSION).put(opcode).putInt(payloadLength).putInt(0).putInt(0);
+    }
+
+    /**
+     * Returns a copy of the header of frame, positioned at its start, addressed to
+     * the virtual node with the given id and tagged with requestId. The frame itself
+     * is left untouched so it can be shared between requests.
+     */
+    public static ByteBuffer header(ByteBuffer frame, long target, int requestId) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(frame.duplicate().limit(frame.position() + HEADER_SIZE));
+        return header.putInt(6, (int) target).putInt(10, requestId).flip();
+    }
+
+    /**
+     * The request id of the frame buffer is positioned at.
+     */
+    public static int requestId(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position() + 10);
+    }
+
+    /**
+     * Tags a response frame, positioned at its start, with the id of the request it answers.
+     */
+    public static ByteBuffer setRequestId(ByteBuffer frame, int requestId) {
+        return frame.putInt(frame.position() + 10, requestId);
+    }
+
+    /**
+     * The target id of the frame buffer is positioned at.
+     */
+    public static long target(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position() + 6) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Returns the opcode of a message positioned at its opcode byte, as handed out
+     * by {@link #readMessage}.
+     */
+    public static byte opcode(ByteBuffer message) {
+        return message.get(message.position());
+    }
+
+    /**
+     * The opcode of a frame positioned at its start, before it is sent.
+     */
+    public static byte frameOpcode(ByteBuffer frame) {
+        return frame.get(frame.position() + 1);
+    }
+
+    /**
+     * The name of a request opcode, for logs and metrics.
+     */
+    public static String requestName(int opcode) {
+        return opcode >= 0 && opcode < REQUEST_NAMES.length ? REQUEST_NAMES[opcode] : "0x" + Integer.toHexString(opcode);
+    }
+
+    /**
+     * Checks whether buffer, positioned at the start of a frame, holds a complete one.
+     * Returns the total frame size, 0 if more bytes are needed, or -1 if the header is invalid.
+     */
+    public static int completeFrameSize(ByteBuffer buffer) {
+        int remaining = buffer.remaining();
+        if (remaining < HEADER_SIZE) {
+            return 0;
+        }
+        int start = buffer.position();
+        int length = buffer.getInt(start + 2);
+        if (buffer.get(start) != VERSION || length < 0 || length > MAX_PAYLOAD) {
+            return -1;
+        }
+        return remaining >= HEADER_SIZE + length ? HEADER_SIZE + length : 0;
+    }
+
+    /**
+     * Copies one complete frame out of buffer and returns it positioned at its
+     * opcode, with the payload following.
+     */
+    public static ByteBuffer readMessage(ByteBuffer buffer, int frameSize) {
+        int start = buffer.position();
+        ByteBuffer message = ByteBuffer.allocate(frameSize - HEADER_SIZE + 1);
+        message.put(buffer.get(start + 1));
+        message.put(buffer.slice(start + HEADER_SIZE, frameSize - HEADER_SIZE));
+        buffer.position(start + frameSize);
+        return message.flip();
+    }
+
+    public static long getId(ByteBuffer buffer) {
+        return buffer.getInt() & 0xFFFFFFFFL;
+    }
+
+    public static void putNode(ByteBuffer buffer, NodeRef node) {
+        InetSocketAddress address = node.getAddress();
+        byte[] ip = address.getAddress().getAddress();
+        buffer.putInt((int) node.getId()).put((byte) ip.length).put(ip).putShort((short) address.getPort());
+    }
+
+    public static NodeRef getNode(ByteBuffer buffer) {
+        long id = getId(buffer);
+        int length = buffer.get() & 0xFF;
+        if (length != 4 && length != 16) {
+            throw new IllegalArgumentException("Malformed address length " + length + " in message");
+        }
+        byte[] ip = new byte[length];
+        buffer.get(ip);
+        int port = buffer.getShort() & 0xFFFF;
+        try {
+            return new NodeRef(new InetSocketAddress(InetAddress.getByAddress(ip), port), id);
+        } catch (UnknownHostException e) {
+            // only thrown for an illegal address length
+            throw new IllegalArgumentException("Malformed address in message", e);
+        }
+    }
+
+    public static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    public static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed byte string in message");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public static NodeRef[] getNodes(ByteBuffer buffer) {
+        NodeRef[] nodes = new NodeRef[buffer.get() & 0xFF];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = getNode(buffer);
+        }
+        return nodes;
+    }
+
+    private static String nodeToText(NodeRef node) {
+        return Helper.longTo8DigitHex(node.getId()) + "_" + node.getAddress().getAddress() + ":" + node.getAddress().getPort();
+    }
+
+    /**
+     * Translates one line of the text fallback into a binary frame, or returns null
+     * if the command is not recognised.
+     */
+    public static ByteBuffer parseText(String line) {
+        String[] parts = line.trim().split("_", 2);
+        try {
+            switch (parts[0]) {
+                case "KEEP":
+                    return encode(KEEP);
+                case "YOURSUCC":
+                    return encode(YOURSUCC);
+                case "FINDPRE":
+                    return encode(FINDPRE);
+                case "SUCCESSORS":
+                    return encode(SUCCESSORS);
+                case "FINGERS":
+                    return encode(FINGERS);
+                case "CLOSEST":
+                    return encode(CLOSEST, Long.parseLong(parts[1]));
+                case "FINDSUCC":
+                    return encode(FINDSUCC, Long.parseLong(parts[1]));
+                case "STEP":
+                    return encode(STEP, Long.parseLong(parts[1]), 4);
+                case "PUT":
+                    // PUT_<key>_<value>, so the key itself cannot contain '_'
+                    String[] keyValue = parts[1].split("_", 2);
+                    return encodeKeyValue(PUT, keyValue[0].getBytes(StandardCharsets.UTF_8), keyValue[1].getBytes(StandardCharsets.UTF_8));
+                case "GET":
+                    return encodeKeyValue(GET, parts[1].getBytes(StandardCharsets.UTF_8), null);
+                case "DELETE":
+                    return encodeKeyValue(DELETE, parts[1].getBytes(StandardCharsets.UTF_8), null);
+                case "PREFOUND":
+                    InetSocketAddress address = Helper.createSocketAddress(parts[1]);
+                    return address != null ? encode(PREFOUND, new NodeRef(address)) : null;
+                default:
+                    return null;
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Renders a response message for the text fallback.
+     */
+    public static String toText(ByteBuffer message) {
+        ByteBuffer view = message.duplicate();
+        switch (view.get()) {
+            case ALIVE:
+                return "ALIVE";
+            case NOTIFIED:
+                return "NOTIFIED";
+            case NOTHING:
+                return "NOTHING";
+            case ACK:
+                return "ACK";
+            case NOT_OWNER:
+                return "NOT_OWNER";
+            case VALUE:
+                return "VALUE_" + new String(getBytes(view), StandardCharsets.UTF_8);
+            case NODE:
+                return "NODE_" + nodeToText(getNode(view));
+            case NODES:
+                StringBuilder text = new StringBuilder("NODES");
+                for (NodeRef node : getNodes(view)) {
+                    text.append(' ').append(nodeToText(node));
+                }
+                return text.toString();
+            case TABLE:
+                StringBuilder table = new StringBuilder("TABLE");
+                for (NodeRef node : getNodes(view)) {
+                    table.append(' ').append(nodeToText(node));
+                }
+                table.append(" |");
+                for (NodeRef node : getNodes(view)) {
+                    table.append(' ').append(nodeToText(node));
+                }
+                return table.toString();
+            default:
+                return "UNKNOWN";
+        }
+    }
+}
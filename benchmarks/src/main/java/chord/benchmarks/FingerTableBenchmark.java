@@ -0,0 +1,83 @@
+package chord.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Choosing the next hop: {@code Node.closestPrecedingFinger} over a finger table
+ * filled as it would be on a converged ring of the given size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FingerTableBenchmark {
+
+    private static final int IDS = 1024;
+
+    private static final MethodHandle CLOSEST_PRECEDING_FINGER =
+            Handles.virtualMethod("Node", "closestPrecedingFinger", Handles.type("NodeRef"), long.class);
+
+    @Param({"100", "10000"})
+    public int ringSize;
+
+    private Object node;
+    private final long[] ids = new long[IDS];
+    private int next;
+
+    @Setup
+    public void setUp() throws Throwable {
+        // nothing is sent: a simulated network that is never run swallows the notify for finger 1
+        Handles.staticMethod("Helper", "setTransport", void.class, Handles.type("Transport"))
+                .invoke(Handles.constructor("SimulatedTransport", long.class).invoke(1L));
+        MethodHandle newNode = Handles.constructor("Node", InetSocketAddress.class);
+        MethodHandle newNodeRef = Handles.constructor("NodeRef", InetSocketAddress.class, long.class);
+        MethodHandle updateFinger = Handles.virtualMethod("Node", "updateSingleFinger", void.class, int.class, Handles.type("NodeRef"));
+        MethodHandle getId = Handles.virtualMethod("Node", "getId", long.class);
+
+        node = newNode.invoke(address(0));
+        long self = (long) getId.invoke(node);
+        Random random = new Random(1);
+        TreeMap<Long, Object> ring = new TreeMap<>();
+        for (int i = 1; i < ringSize; i++) {
+            long id = random.nextLong() & 0xFFFFFFFFL;
+            ring.put(id, newNodeRef.invoke(address(i), id));
+        }
+        for (int i = 1; i <= 32; i++) {
+            long start = (self + (1L << (i - 1))) & 0xFFFFFFFFL;
+            Long owner = ring.ceilingKey(start);
+            updateFinger.invoke(node, i, ring.get(owner != null ? owner : ring.firstKey()));
+        }
+        for (int i = 0; i < IDS; i++) {
+            ids[i] = random.nextLong() & 0xFFFFFFFFL;
+        }
+    }
+
+    @Benchmark
+    public Object closestPrecedingFinger() throws Throwable {
+        long id = ids[next++ & (IDS - 1)];
+        return (Object) CLOSEST_PRECEDING_FINGER.invokeExact(node, id);
+    }
+
+    private static InetSocketAddress address(int i) throws Exception {
+        return new InetSocketAddress(InetAddress.getByAddress(new byte[] {10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i}), 8000);
+    }
+}
@@ -0,0 +1,78 @@
+package chord.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Access to the node's classes, which live in the default package and so cannot
+ * be imported from here (JMH refuses benchmarks in the default package). Handles
+ * are looked up once and kept in static final fields, where the JIT treats them
+ * as constants and inlines the call, so they add no cost or allocation per call.
+ *
+ * Every reference type in a handle's signature is erased to Object, so callers
+ * can invokeExact with Object arguments and cast the result.
+ */
+final class Handles {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    private Handles() {
+    }
+
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Node class " + name + " is not on the class path", e);
+        }
+    }
+
+    static MethodHandle staticMethod(String owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return erase(LOOKUP.findStatic(type(owner), name, MethodType.methodType(returnType, parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No method " + owner + "." + name, e);
+        }
+    }
+
+    static MethodHandle virtualMethod(String owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return erase(LOOKUP.findVirtual(type(owner), name, MethodType.methodType(returnType, parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No method " + owner + "." + name, e);
+        }
+    }
+
+    static MethodHandle constructor(String owner, Class<?>... parameterTypes) {
+        try {
+            return erase(LOOKUP.findConstructor(type(owner), MethodType.methodType(void.class, parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No constructor for " + owner, e);
+        }
+    }
+
+    /**
+     * Reads a public static field of a node class, such as a WireProtocol opcode.
+     */
+    static Object constant(String owner, String name) {
+        try {
+            return type(owner).getField(name).get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No field " + owner + "." + name, e);
+        }
+    }
+
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (!type.parameterType(i).isPrimitive()) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (!type.returnType().isPrimitive()) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+}
@@ -0,0 +1,46 @@
+package chord.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing of node addresses and keys onto the ring, done for every key-value
+ * request and every node reference built from an address.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashBenchmark {
+
+    private static final MethodHandle HASH_SOCKET_ADDRESS =
+            Handles.staticMethod("Helper", "hashSocketAddress", long.class, InetSocketAddress.class);
+    private static final MethodHandle HASH_STRING =
+            Handles.staticMethod("Helper", "hashString", long.class, String.class);
+
+    private final Object address = new InetSocketAddress("127.0.0.1", 8000);
+    private final Object key = "user:1234567:profile";
+
+    @Benchmark
+    public long hashSocketAddress() throws Throwable {
+        return (long) HASH_SOCKET_ADDRESS.invokeExact(address);
+    }
+
+    @Benchmark
+    public long hashString() throws Throwable {
+        return (long) HASH_STRING.invokeExact(key);
+    }
+}
@@ -0,0 +1,92 @@
+package chord.benchmarks;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end lookups over TCP on the loopback interface, on a ring of real nodes
+ * that has had time to stabilize. Measures the whole path: routing, encoding,
+ * the transport, the server loop and the handlers on every hop.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LookupBenchmark {
+
+    private static final int IDS = 1024;
+    private static final long STABILIZE_MS = 10000;
+
+    private static final MethodHandle LOOKUP = Handles.virtualMethod("Node", "lookup", Handles.type("LookupResult"), long.class);
+
+    @Param({"16"})
+    public int ringSize;
+
+    private final List<Object> nodes = new ArrayList<>();
+    private final long[] ids = new long[IDS];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        MethodHandle newNode = Handles.constructor("Node", InetSocketAddress.class);
+        MethodHandle join = Handles.virtualMethod("Node", "join", boolean.class, InetSocketAddress.class);
+        InetSocketAddress contact = null;
+        for (int i = 0; i < ringSize; i++) {
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", freePort());
+            Object node = newNode.invoke(address);
+            if (!(boolean) join.invoke(node, contact != null ? contact : address)) {
+                throw new IllegalStateException("Node at " + address + " could not join");
+            }
+            contact = contact != null ? contact : address;
+            nodes.add(node);
+        }
+        Thread.sleep(STABILIZE_MS);
+        Random random = new Random(1);
+        for (int i = 0; i < IDS; i++) {
+            ids[i] = random.nextLong() & 0xFFFFFFFFL;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        MethodHandle stop = Handles.virtualMethod("Node", "stopAllThreads", void.class);
+        for (Object node : nodes) {
+            stop.invoke(node);
+        }
+    }
+
+    @Benchmark
+    public Object lookup() throws Throwable {
+        int i = next++;
+        Object origin = nodes.get(i % nodes.size());
+        return (Object) LOOKUP.invokeExact(origin, ids[i & (IDS - 1)]);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
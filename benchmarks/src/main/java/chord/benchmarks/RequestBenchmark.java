@@ -0,0 +1,86 @@
+package chord.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Server-side handling of one request as read off the wire: dispatch to the
+ * target node, parsing, the handler itself and encoding the response, without
+ * any socket in the way.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestBenchmark {
+
+    private static final MethodHandle HANDLE =
+            Handles.virtualMethod("CommunicateManager", "handle", java.util.concurrent.CompletableFuture.class, long.class, ByteBuffer.class);
+
+    @Param({"KEEP", "STEP", "GET", "PUT"})
+    public String opcode;
+
+    private Object server;
+    private long target;
+    private ByteBuffer message;
+
+    @Setup
+    public void setUp() throws Throwable {
+        // replication and notifications go to a simulated network that is never run
+        Handles.staticMethod("Helper", "setTransport", void.class, Handles.type("Transport"))
+                .invoke(Handles.constructor("SimulatedTransport", long.class).invoke(1L));
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 8000);
+        Object node = Handles.constructor("Node", InetSocketAddress.class).invoke(address);
+        server = Handles.constructor("CommunicateManager", InetSocketAddress.class, int.class).invoke(address, 1);
+        Handles.virtualMethod("CommunicateManager", "register", void.class, Handles.type("Node")).invoke(server, node);
+        target = (long) Handles.virtualMethod("Node", "getId", long.class).invoke(node);
+
+        byte code = (byte) Handles.constant("WireProtocol", opcode);
+        byte[] key = "user:1234567:profile".getBytes(StandardCharsets.UTF_8);
+        byte[] value = new byte[256];
+        Object frame;
+        switch (opcode) {
+            case "STEP":
+                frame = Handles.staticMethod("WireProtocol", "encode", ByteBuffer.class, byte.class, long.class, int.class)
+                        .invoke(code, 0x12345678L, 4);
+                break;
+            case "GET":
+            case "PUT":
+                frame = Handles.staticMethod("WireProtocol", "encodeKeyValue", ByteBuffer.class, byte.class, byte[].class, byte[].class)
+                        .invoke(code, key, "PUT".equals(opcode) ? value : null);
+                break;
+            default:
+                frame = Handles.staticMethod("WireProtocol", "encode", ByteBuffer.class, byte.class).invoke(code);
+        }
+        int size = (int) Handles.staticMethod("WireProtocol", "completeFrameSize", int.class, ByteBuffer.class).invoke(frame);
+        message = (ByteBuffer) Handles.staticMethod("WireProtocol", "readMessage", ByteBuffer.class, ByteBuffer.class, int.class)
+                .invoke(frame, size);
+        if ("GET".equals(opcode)) {
+            Object store = Handles.virtualMethod("Node", "getDataStore", Handles.type("DataStore")).invoke(node);
+            Handles.virtualMethod("DataStore", "put", void.class, byte[].class, byte[].class).invoke(store, key, value);
+        }
+    }
+
+    @Benchmark
+    public Object handle() throws Throwable {
+        message.rewind();
+        return (Object) HANDLE.invokeExact(server, target, (Object) message);
+    }
+}